@@ -4,30 +4,20 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.SystemClock;
 import android.widget.Toast;
 
 import com.integreight.firmatabluetooth.BluetoothService.BluetoothServiceHandler;
 import com.integreight.onesheeld.enums.UIShield;
-import com.integreight.onesheeld.utils.ArrayUtils;
-import com.integreight.onesheeld.utils.Log;
 import com.integreight.onesheeld.utils.TimeOut;
 
-import java.util.ArrayList;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ArduinoFirmata {
     public final static String TAG = "ArduinoFirmata";
 
-    LinkedBlockingQueue<Byte> uartBuffer;
-    LinkedBlockingQueue<Byte> bluetoothBuffer;
-    UartListeningThread uartListeningThread;
-    BluetoothBufferListeningThread bluetoothBufferListeningThread;
-    TimeOut ShieldFrameTimeout;
-    boolean isBootloader = false;
+    ShieldFrameDecoder shieldFrameDecoder;
+    volatile boolean isBootloader = false;
 
     public static final byte INPUT = 0;
     public static final byte OUTPUT = 1;
@@ -35,11 +25,15 @@ public class ArduinoFirmata {
     public static final byte SERVO = 4;
     public static final boolean LOW = false;
     public static final boolean HIGH = true;
+    public static final int ANY_INSTANCE_ID = -1;
 
     private int arduinoLibraryVersion = -1;
 
     private final char MAX_DATA_BYTES = 4096;
     private final char MAX_OUTPUT_BYTES = 32;
+    private final int SHIELD_FRAME_TIMEOUT = 1000;
+    private final int FRAME_TRACE_SLOTS = 512;
+    private final int FRAME_TRACE_SLOT_SIZE = 64;
     private final byte DIGITAL_MESSAGE = (byte) 0x90;
     private final byte ANALOG_MESSAGE = (byte) 0xE0;
     private final byte REPORT_ANALOG = (byte) 0xC0;
@@ -47,8 +41,8 @@ public class ArduinoFirmata {
     private final byte SET_PIN_MODE = (byte) 0xF4;
     private final byte REPORT_VERSION = (byte) 0xF9;
     private final byte SYSTEM_RESET = (byte) 0xFF;
-    private final byte START_SYSEX = (byte) 0xF0;
-    private final byte END_SYSEX = (byte) 0xF7;
+    static final byte START_SYSEX = (byte) 0xF0;
+    static final byte END_SYSEX = (byte) 0xF7;
     private final byte REPORT_INPUT_PINS = (byte) 0x5F;
     private final byte RESET_MICRO = (byte) 0x60;
     private final byte BLUETOOTH_RESET = (byte) 0x61;
@@ -66,10 +60,10 @@ public class ArduinoFirmata {
     private final byte IS_CALLBACK_EXITED = (byte) 0x04;
 
     private final Object sysexLock = new Object();
+    private final SysexEncoder sysexEncoder = new SysexEncoder();
+    private final FrameTracer frameTracer = new FrameTracer(FRAME_TRACE_SLOTS, FRAME_TRACE_SLOT_SIZE);
     private final Object arduinoCallbacksLock = new Object();
-    private Thread exitingCallbacksThread, enteringCallbacksThread;
     private TimeOut callbacksTimeout;
-    private long lastTimeCallbacksExited;
     private int sysexBytesCount = 0;
 
     Handler uiThreadHandler;
@@ -99,9 +93,10 @@ public class ArduinoFirmata {
     private CopyOnWriteArrayList<ArduinoFirmataEventHandler> eventHandlers;
     private CopyOnWriteArrayList<ArduinoFirmataDataHandler> dataHandlers;
     private CopyOnWriteArrayList<ArduinoFirmataShieldFrameHandler> frameHandlers;
+    private AtomicReferenceArray<ShieldFrameRoute[]> shieldFrameRoutes;
     private CopyOnWriteArrayList<FirmwareVersionQueryHandler> firmwareVersionQueryHandlers;
     private CopyOnWriteArrayList<ArduinoLibraryVersionChangeHandler> arduinoLibraryVersionChangeHandlers;
-    private static Queue<ShieldFrame> queuedFrames;
+    private OutboundFrameScheduler outboundFrameScheduler;
 
     public void addEventHandler(ArduinoFirmataEventHandler handler) {
         if (handler != null && !eventHandlers.contains(handler))
@@ -128,10 +123,59 @@ public class ArduinoFirmata {
             frameHandlers.add(handler);
     }
 
+    public void addShieldFrameHandler(byte shieldId,
+            ArduinoFirmataShieldFrameHandler handler) {
+        addShieldFrameHandler(shieldId, ANY_INSTANCE_ID, handler);
+    }
+
+    public void addShieldFrameHandler(byte shieldId, int instanceId,
+            ArduinoFirmataShieldFrameHandler handler) {
+        if (handler == null)
+            return;
+        synchronized (shieldFrameRoutes) {
+            ShieldFrameRoute[] routes = shieldFrameRoutes.get(shieldId & 0xFF);
+            int length = routes == null ? 0 : routes.length;
+            for (int i = 0; i < length; i++) {
+                if (routes[i].handler == handler && routes[i].instanceId == instanceId)
+                    return;
+            }
+            ShieldFrameRoute[] newRoutes = new ShieldFrameRoute[length + 1];
+            if (routes != null)
+                System.arraycopy(routes, 0, newRoutes, 0, length);
+            newRoutes[length] = new ShieldFrameRoute(handler, instanceId);
+            shieldFrameRoutes.set(shieldId & 0xFF, newRoutes);
+        }
+    }
+
     public void removeShieldFrameHandler(
             ArduinoFirmataShieldFrameHandler handler) {
-        if (handler != null && frameHandlers.contains(handler))
-            frameHandlers.remove(handler);
+        if (handler == null)
+            return;
+        frameHandlers.remove(handler);
+        synchronized (shieldFrameRoutes) {
+            for (int id = 0; id < shieldFrameRoutes.length(); id++) {
+                ShieldFrameRoute[] routes = shieldFrameRoutes.get(id);
+                if (routes == null)
+                    continue;
+                int remaining = 0;
+                for (ShieldFrameRoute route : routes) {
+                    if (route.handler != handler)
+                        remaining++;
+                }
+                if (remaining == routes.length)
+                    continue;
+                ShieldFrameRoute[] newRoutes = null;
+                if (remaining > 0) {
+                    newRoutes = new ShieldFrameRoute[remaining];
+                    int i = 0;
+                    for (ShieldFrameRoute route : routes) {
+                        if (route.handler != handler)
+                            newRoutes[i++] = route;
+                    }
+                }
+                shieldFrameRoutes.set(id, newRoutes);
+            }
+        }
     }
 
     public void addFirmwareVersionQueryHandler(
@@ -163,8 +207,11 @@ public class ArduinoFirmata {
     private byte executeMultiByteCommand = 0;
     private byte multiByteChannel = 0;
     private byte[] storedInputData = new byte[MAX_DATA_BYTES];
+    private final byte[] fixedSysexBuffer = new byte[MAX_DATA_BYTES / 2];
     private boolean parsingSysex = false;
     private int sysexBytesRead = 0;
+    // Set by resetProcessInput from any thread, the parser state is only reset on the read thread
+    private volatile boolean isInputResetPending = false;
     private int[] digitalOutputData = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
             0, 0, 0, 0, 0, 0, 0};
     private int[] digitalInputData = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
@@ -176,15 +223,21 @@ public class ArduinoFirmata {
     private boolean isVersionQueried = false;
     private BluetoothService bluetoothService;
     private Context context;
-    private boolean isBluetoothBufferWaiting;
-    private boolean isUartBufferWaiting;
-    private boolean isInACallback;
 
     public int getBTState() {
         return bluetoothService.getState();
     }
 
+    /**
+     * Resets the parser before the next input slice, or right after the
+     * message being handled if called from one of its handlers.
+     */
     public void resetProcessInput() {
+        isInputResetPending = true;
+    }
+
+    private void applyInputReset() {
+        isInputResetPending = false;
         waitForData = 0;
         executeMultiByteCommand = 0;
         multiByteChannel = 0;
@@ -194,22 +247,30 @@ public class ArduinoFirmata {
     }
 
     public boolean getCallbackStatus() {
-        synchronized (arduinoCallbacksLock) {
-            return isInACallback;
-        }
+        return outboundFrameScheduler.isInACallback();
 
     }
 
     public ArduinoFirmata(Context context) {
-        uartBuffer = new LinkedBlockingQueue<Byte>();
-        bluetoothBuffer = new LinkedBlockingQueue<Byte>();
+        shieldFrameDecoder = new ShieldFrameDecoder(shieldFrameDecoderHandler);
+        shieldFrameDecoder.setFrameTimeout(SHIELD_FRAME_TIMEOUT);
+        shieldFrameDecoder.acceptShieldId(CONFIGURATION_SHIELD_ID);
+        for (UIShield shield : UIShield.values()) {
+            shieldFrameDecoder.acceptShieldId(shield.getId());
+        }
         bluetoothService = new BluetoothService(context);
         eventHandlers = new CopyOnWriteArrayList<ArduinoFirmataEventHandler>();
         dataHandlers = new CopyOnWriteArrayList<ArduinoFirmataDataHandler>();
         frameHandlers = new CopyOnWriteArrayList<ArduinoFirmataShieldFrameHandler>();
+        shieldFrameRoutes = new AtomicReferenceArray<ShieldFrameRoute[]>(256);
         firmwareVersionQueryHandlers = new CopyOnWriteArrayList<FirmwareVersionQueryHandler>();
         arduinoLibraryVersionChangeHandlers = new CopyOnWriteArrayList<ArduinoLibraryVersionChangeHandler>();
-        queuedFrames = new ConcurrentLinkedQueue<>();
+        outboundFrameScheduler = new OutboundFrameScheduler(new OutboundFrameScheduler.FrameSender() {
+            @Override
+            public void sendFrame(ShieldFrame frame) {
+                ArduinoFirmata.this.sendFrame(frame);
+            }
+        });
         this.context = context;
         bluetoothService.addBluetoothServiceHandler(handler);
         uiThreadHandler = new Handler(Looper.getMainLooper());
@@ -248,7 +309,7 @@ public class ArduinoFirmata {
     }
 
     public void notifyHardwareOfConnection() {
-        sendShieldFrame(new ShieldFrame(CONFIGURATION_SHIELD_ID, BT_CONNECTED));
+        sendShieldFrame(ShieldFrame.obtain(CONFIGURATION_SHIELD_ID, BT_CONNECTED));
     }
 
     public boolean isOpen() {
@@ -259,31 +320,15 @@ public class ArduinoFirmata {
     public boolean close() {
         clearArduinoFirmataDataHandlers();
         clearArduinoFirmataShieldFrameHandlers();
-        stopBuffersThreads();
         arduinoLibraryVersion = -1;
         if (callbacksTimeout != null) callbacksTimeout.stopTimer();
-        if (exitingCallbacksThread != null && exitingCallbacksThread.isAlive())
-            exitingCallbacksThread.interrupt();
-        if (enteringCallbacksThread != null && enteringCallbacksThread.isAlive())
-            enteringCallbacksThread.interrupt();
         if (bluetoothService != null && isOpen())
             bluetoothService.stopConnection();
-//        queuedFrames = null;
-        while(queuedFrames!=null&&!queuedFrames.isEmpty())queuedFrames.poll();
-        isInACallback = false;
+        outboundFrameScheduler.clear();
 
         return true;
     }
 
-    public void stopBuffersThreads() {
-        if (uartListeningThread != null) {
-            uartListeningThread.stopRunning();
-        }
-        if (bluetoothBufferListeningThread != null) {
-            bluetoothBufferListeningThread.stopRunning();
-        }
-    }
-
     public void write(byte[] writeData) {
 
         if (isOpen())
@@ -297,33 +342,11 @@ public class ArduinoFirmata {
 
     public void sysex(byte command, byte[] bytes) {
         // http://firmata.org/wiki/V2.1ProtocolDetails#Sysex_Message_Format
-        byte[] data = getByteArrayAs2SevenBitsBytesArray(bytes);
-        if (data.length > 32)
+        if (bytes.length * 2 > 32)
             return;
-        byte[] writeData = new byte[data.length + 3];
-        writeData[0] = START_SYSEX;
-        writeData[1] = command;
-        for (int i = 0; i < data.length; i++) {
-            writeData[i + 2] = (byte) (data[i] & 127); // 7bit
-        }
-        writeData[writeData.length - 1] = END_SYSEX;
-        write(writeData);
-    }
-
-    private byte[] getByteAs2SevenBitsBytes(byte data) {
-        byte[] temp = new byte[2];
-        temp[0] = (byte) ((data & 0xFF) & 127);
-        temp[1] = (byte) (((data & 0xFF) >> 7) & 127);
-        return temp;
-    }
-
-    private byte[] getByteArrayAs2SevenBitsBytesArray(byte[] data) {
-        byte[] temp = new byte[data.length * 2];
-        for (int i = 0; i < temp.length; i += 2) {
-            temp[i] = getByteAs2SevenBitsBytes(data[i / 2])[0];
-            temp[i + 1] = getByteAs2SevenBitsBytes(data[i / 2])[1];
+        synchronized (sysexLock) {
+            write(sysexEncoder.reset().appendSysex(command, bytes, 0, bytes.length).toByteArray());
         }
-        return temp;
     }
 
     public boolean digitalRead(int pin) {
@@ -390,94 +413,124 @@ public class ArduinoFirmata {
         }
     }
 
-    private void processInput(byte inputData) {
+    public void processInput(byte[] buf, int off, int len) {
+        if (isInputResetPending)
+            applyInputReset();
+        boolean parsingSysex = this.parsingSysex;
+        int sysexBytesRead = this.sysexBytesRead;
+        int waitForData = this.waitForData;
+        byte executeMultiByteCommand = this.executeMultiByteCommand;
+        byte multiByteChannel = this.multiByteChannel;
+        byte[] storedInputData = this.storedInputData;
         byte command;
-        if (parsingSysex) {
-            if (inputData == END_SYSEX) {
-                parsingSysex = false;
-                byte sysexCommand = storedInputData[0];
-                if (sysexBytesRead > 0) {
-                    byte[] sysexData = new byte[sysexBytesRead - 1];
-
-                    System.arraycopy(storedInputData, 1, sysexData, 0,
-                            sysexBytesRead - 1);
-
-                    byte[] fixedSysexData = null;
-                    if (sysexData.length % 2 == 0) {
-                        fixedSysexData = new byte[sysexData.length / 2];
-                        for (int i = 0; i < sysexData.length; i += 2) {
-                            fixedSysexData[i / 2] = (byte) (sysexData[i] | (sysexData[i + 1] << 7));
-                        }
-
-                        if (sysexCommand == UART_DATA && fixedSysexData != null) {
-                            for (byte b : fixedSysexData) {
-                                uartBuffer.add(b);
-                            }
-                        } else if (sysexCommand == BLUETOOTH_RESET) {
-                            if (!isBootloader) {
-                                byte randomVal=(byte)(Math.random()*255);
-                                byte complement=(byte)(255-randomVal&0xFF);
-                                synchronized (sysexLock) {
-                                    sysex(BLUETOOTH_RESET, new byte[]{0x01,randomVal,complement});
-                                }
-                                close();
-                            }
-                        } else if (sysexCommand == IS_ALIVE) {
-                            respondToIsAlive();
-                        } else
-                            for (ArduinoFirmataDataHandler dataHandler : dataHandlers) {
-                                dataHandler.onSysex(sysexCommand, sysexData);
-                            }
-                    }
-                } else {
-                    for (ArduinoFirmataDataHandler dataHandler : dataHandlers) {
-                        dataHandler.onSysex(sysexCommand, new byte[]{});
+        boolean isMessageHandled = false;
+        for (int i = off, end = off + len; i < end; i++) {
+            byte inputData = buf[i];
+            if (isBootloader) {
+                resetBluetoothSysex(inputData);
+            } else if (parsingSysex) {
+                if (inputData == END_SYSEX) {
+                    parsingSysex = false;
+                    processSysex(storedInputData, sysexBytesRead);
+                    isMessageHandled = true;
+                } else if (sysexBytesRead < storedInputData.length) {
+                    storedInputData[sysexBytesRead] = inputData;
+                    sysexBytesRead++;
+                }
+            } else if (waitForData > 0 && (int) (inputData & 0xFF) < 128) {
+                waitForData--;
+                storedInputData[waitForData] = inputData;
+                if (executeMultiByteCommand != 0 && waitForData == 0) {
+                    switch (executeMultiByteCommand) {
+                        case DIGITAL_MESSAGE:
+                            setDigitalInputs(multiByteChannel,
+                                    (storedInputData[0] << 7) + storedInputData[1]);
+                            break;
+                        case ANALOG_MESSAGE:
+                            setAnalogInput(multiByteChannel, (storedInputData[0] << 7)
+                                    + storedInputData[1]);
+                            break;
+                        case REPORT_VERSION:
+                            setVersion(storedInputData[0], storedInputData[1]);
+                            isVersionQueried = true;
+                            break;
                     }
+                    isMessageHandled = true;
                 }
-
             } else {
-                if (sysexBytesRead < storedInputData.length) {
-                    storedInputData[sysexBytesRead] = inputData;
-                    sysexBytesRead++;
+                if ((int) (inputData & 0xFF) < 0xF0) {
+                    command = (byte) (inputData & 0xF0);
+                    multiByteChannel = (byte) (inputData & 0x0F);
+                } else {
+                    command = inputData;
                 }
-            }
-        } else if (waitForData > 0 && (int) (inputData & 0xFF) < 128) {
-            waitForData--;
-            storedInputData[waitForData] = inputData;
-            if (executeMultiByteCommand != 0 && waitForData == 0) {
-                switch (executeMultiByteCommand) {
-                    case DIGITAL_MESSAGE:
-                        setDigitalInputs(multiByteChannel,
-                                (storedInputData[0] << 7) + storedInputData[1]);
+                switch (command) {
+                    case START_SYSEX:
+                        parsingSysex = true;
+                        sysexBytesRead = 0;
                         break;
+                    case DIGITAL_MESSAGE:
                     case ANALOG_MESSAGE:
-                        setAnalogInput(multiByteChannel, (storedInputData[0] << 7)
-                                + storedInputData[1]);
-                        break;
                     case REPORT_VERSION:
-                        setVersion(storedInputData[0], storedInputData[1]);
-                        isVersionQueried = true;
+                        waitForData = 2;
+                        executeMultiByteCommand = command;
                         break;
                 }
             }
-        } else {
-            if ((int) (inputData & 0xFF) < 0xF0) {
-                command = (byte) (inputData & 0xF0);
-                multiByteChannel = (byte) (inputData & 0x0F);
-            } else {
-                command = inputData;
-            }
-            switch (command) {
-                case START_SYSEX:
-                    parsingSysex = true;
+            if (isMessageHandled) {
+                isMessageHandled = false;
+                // One of the message's handlers may have reset the parser
+                if (isInputResetPending) {
+                    applyInputReset();
+                    parsingSysex = false;
                     sysexBytesRead = 0;
-                    break;
-                case DIGITAL_MESSAGE:
-                case ANALOG_MESSAGE:
-                case REPORT_VERSION:
-                    waitForData = 2;
-                    executeMultiByteCommand = command;
-                    break;
+                    waitForData = 0;
+                    executeMultiByteCommand = 0;
+                    multiByteChannel = 0;
+                    storedInputData = this.storedInputData;
+                }
+            }
+        }
+        this.parsingSysex = parsingSysex;
+        this.sysexBytesRead = sysexBytesRead;
+        this.waitForData = waitForData;
+        this.executeMultiByteCommand = executeMultiByteCommand;
+        this.multiByteChannel = multiByteChannel;
+    }
+
+    private void processSysex(byte[] storedInputData, int sysexBytesRead) {
+        byte sysexCommand = storedInputData[0];
+        if (sysexBytesRead <= 0) {
+            for (ArduinoFirmataDataHandler dataHandler : dataHandlers) {
+                dataHandler.onSysex(sysexCommand, new byte[]{});
+            }
+            return;
+        }
+        int sysexDataLength = sysexBytesRead - 1;
+        if (sysexDataLength % 2 != 0)
+            return;
+        if (sysexCommand == UART_DATA) {
+            byte[] fixedSysexData = fixedSysexBuffer;
+            for (int i = 0; i < sysexDataLength; i += 2) {
+                fixedSysexData[i / 2] = (byte) (storedInputData[i + 1] | (storedInputData[i + 2] << 7));
+            }
+            shieldFrameDecoder.decode(fixedSysexData, 0, sysexDataLength / 2);
+        } else if (sysexCommand == BLUETOOTH_RESET) {
+            if (!isBootloader) {
+                byte randomVal=(byte)(Math.random()*255);
+                byte complement=(byte)(255-randomVal&0xFF);
+                synchronized (sysexLock) {
+                    sysex(BLUETOOTH_RESET, new byte[]{0x01,randomVal,complement});
+                }
+                close();
+            }
+        } else if (sysexCommand == IS_ALIVE) {
+            respondToIsAlive();
+        } else {
+            byte[] sysexData = new byte[sysexDataLength];
+            System.arraycopy(storedInputData, 1, sysexData, 0, sysexDataLength);
+            for (ArduinoFirmataDataHandler dataHandler : dataHandlers) {
+                dataHandler.onSysex(sysexCommand, sysexData);
             }
         }
     }
@@ -516,56 +569,27 @@ public class ArduinoFirmata {
 
     }
 
-    private void printFrameToLog(byte[] frame, String tag) {
-        String s = "";
-        for (byte b : frame) {
-            if ((Integer.toHexString(b).length() < 2))
-                s += "0" + Integer.toHexString(b) + " ";
-            else if ((Integer.toHexString(b).length() == 2))
-                s += Integer.toHexString(b) + " ";
-            else {
-                String temp = Integer.toHexString(b);
-                temp = temp.substring(temp.length() - 2);
-                s += temp + " ";
-            }
-        }
-        Log.d(tag, s);
+    public void setFrameTracingEnabled(boolean enabled) {
+        frameTracer.setEnabled(enabled);
+    }
+
+    public boolean isFrameTracingEnabled() {
+        return frameTracer.isEnabled();
     }
 
     public void queueShieldFrame(ShieldFrame frame) {
-        if (queuedFrames != null) {
-            queuedFrames.add(frame);
-            callbackEntered();
-        }
+        // Enter first, the scheduler may release a frame as soon as it's queued
+        callbackEntered();
+        outboundFrameScheduler.queue(frame);
     }
 
     public void sendShieldFrame(ShieldFrame frame, boolean waitIfInACallback) {
-        if (!waitIfInACallback) {
+        if (!waitIfInACallback || !outboundFrameScheduler.queueIfBusy(frame))
             sendFrame(frame);
-            return;
-        }
-
-        boolean inACallback = false;
-
-        synchronized (arduinoCallbacksLock) {
-            inACallback = isInACallback;
-        }
+    }
 
-        if (inACallback) {
-            if (queuedFrames == null)
-                queuedFrames = new ConcurrentLinkedQueue<>();
-            queuedFrames.add(frame);
-        } else {
-            if (queuedFrames != null) {
-                if (queuedFrames.isEmpty()) {
-                    sendFrame(frame);
-                } else {
-                    queuedFrames.add(frame);
-                }
-            } else {
-                sendFrame(frame);
-            }
-        }
+    public OutboundFrameScheduler getOutboundFrameScheduler() {
+        return outboundFrameScheduler;
     }
 
     public void sendShieldFrame(ShieldFrame frame) {
@@ -575,23 +599,17 @@ public class ArduinoFirmata {
     private void sendFrame(ShieldFrame frame) {
         if (isBootloader||frame==null)
             return;
-        byte[] frameBytes = frame.getAllFrameAsBytes();
         int maxShieldFrameBytes = (MAX_OUTPUT_BYTES - 3) / 2;// The 3 is for
         // StartSysex,
         // EndSysex and
         // Uart_data
-        ArrayList<byte[]> subArrays = new ArrayList<byte[]>();
-        for (int i = 0; i < frameBytes.length; i += maxShieldFrameBytes) {
-            byte[] subArray = (i + maxShieldFrameBytes > frameBytes.length) ? ArrayUtils
-                    .copyOfRange(frameBytes, i, frameBytes.length) : ArrayUtils
-                    .copyOfRange(frameBytes, i, i + maxShieldFrameBytes);
-            subArrays.add(subArray);
-        }
         synchronized (sysexLock) {
-            for (byte[] sub : subArrays)
-                sysex(UART_DATA, sub);
+            write(sysexEncoder.reset().appendSplitSysex(UART_DATA, frame.getFrameBuffer(), 0,
+                    frame.getFrameLength(), maxShieldFrameBytes).toByteArray());
         }
-        printFrameToLog(frameBytes, "Sent");
+        frameTracer.record(FrameTracer.DIRECTION_SENT, frame);
+        if (frame.isPooled())
+            frame.recycle();
     }
 
     public void prepareAppForSendingFirmware() {
@@ -631,12 +649,11 @@ public class ArduinoFirmata {
     }
 
     private void queryLibraryVersion() {
-        sendShieldFrame(new ShieldFrame(CONFIGURATION_SHIELD_ID, QUERY_LIBRARY_VERSION));
+        sendShieldFrame(ShieldFrame.obtain(CONFIGURATION_SHIELD_ID, QUERY_LIBRARY_VERSION));
     }
 
     private void clearAllBuffers() {
-        bluetoothBuffer.clear();
-        uartBuffer.clear();
+        shieldFrameDecoder.reset();
     }
 
     public BluetoothService getBTService() {
@@ -644,6 +661,8 @@ public class ArduinoFirmata {
     }
 
     private void onClose(final boolean isManually) {
+        // Only recorded in debug builds
+        frameTracer.dump(TAG);
         for (final ArduinoFirmataEventHandler eventHandler : eventHandlers) {
             uiThreadHandler.post(new Runnable() {
 
@@ -670,12 +689,8 @@ public class ArduinoFirmata {
         @Override
         public void onDataReceived(byte[] bytes, int length) {
             // TODO Auto-generated method stub
-            for (int i = 0; i < length; i++) {
-                if (i < bytes.length)
-                    bluetoothBuffer.add(bytes[i]);
-                else
-                    break;
-            }
+            if (length > 0)
+                processInput(bytes, 0, Math.min(length, bytes.length));
 
         }
 
@@ -714,19 +729,49 @@ public class ArduinoFirmata {
         }
     };
 
+    ShieldFrameDecoder.ShieldFrameDecoderHandler shieldFrameDecoderHandler = new ShieldFrameDecoder.ShieldFrameDecoderHandler() {
+
+        @Override
+        public void onFrameDecoded(int arduinoLibraryVersion, ShieldFrame frame) {
+            if (ArduinoFirmata.this.arduinoLibraryVersion != arduinoLibraryVersion) {
+                ArduinoFirmata.this.arduinoLibraryVersion = arduinoLibraryVersion;
+                for (ArduinoLibraryVersionChangeHandler handler : arduinoLibraryVersionChangeHandlers) {
+                    handler.onArduinoLibraryVersionChange(arduinoLibraryVersion);
+                }
+            }
+            frameTracer.record(FrameTracer.DIRECTION_RECEIVED, frame);
+            if (frame.getShieldId() == CONFIGURATION_SHIELD_ID) {
+                //1Sheeld configration from the library
+                byte functionId = frame.getFunctionId();
+                if (functionId == LIBRARY_VERSION_RESPONSE) {
+
+                } else if (functionId == IS_HARDWARE_CONNECTED_QUERY) {
+                    notifyHardwareOfConnection();
+                } else if (functionId == IS_CALLBACK_ENTERED) {
+                    callbackEntered();
+                } else if (functionId == IS_CALLBACK_EXITED) {
+                    callbackExited();
+                }
+            } else {
+                ShieldFrameRoute[] routes = shieldFrameRoutes.get(frame.getShieldId() & 0xFF);
+                if (routes != null) {
+                    int instanceId = frame.getInstanceId() & 0xFF;
+                    for (ShieldFrameRoute route : routes) {
+                        if (route.instanceId == ANY_INSTANCE_ID || route.instanceId == instanceId)
+                            route.handler.onNewShieldFrameReceived(frame);
+                    }
+                }
+                for (ArduinoFirmataShieldFrameHandler frameHandler : frameHandlers) {
+                    frameHandler.onNewShieldFrameReceived(frame);
+                }
+            }
+        }
+    };
+
     private void initFirmata(final BluetoothDevice device) {
-        isBluetoothBufferWaiting = false;
-        isUartBufferWaiting = false;
-        stopBuffersThreads();
         clearAllBuffers();
         resetProcessInput();
         isVersionQueried = false;
-        bluetoothBufferListeningThread = new BluetoothBufferListeningThread();
-        uartListeningThread = new UartListeningThread();
-//        while (!isBluetoothBufferWaiting)
-//            ;
-//        while (!isUartBufferWaiting)
-//            ;
 
         uiThreadHandler.postDelayed(new Runnable() {
             @Override
@@ -744,97 +789,37 @@ public class ArduinoFirmata {
         },100);
     }
 
-    private byte readByteFromUartBuffer() throws InterruptedException,
-            ShieldFrameNotComplete {
-        if (ShieldFrameTimeout != null && ShieldFrameTimeout.isTimeout())
-            throw new ShieldFrameNotComplete();
-        isUartBufferWaiting = true;
-        byte temp = uartBuffer.take().byteValue();
-        if (ShieldFrameTimeout != null)
-            ShieldFrameTimeout.resetTimer();
-        return temp;
-    }
-
-    private byte readByteFromBluetoothBuffer() throws InterruptedException {
-        isBluetoothBufferWaiting = true;
-        return bluetoothBuffer.take().byteValue();
-    }
-
     public void clearAllHandlers() {
         eventHandlers.clear();
         dataHandlers.clear();
-        frameHandlers.clear();
+        clearArduinoFirmataShieldFrameHandlers();
     }
 
     private void callbackEntered() {
-        if (enteringCallbacksThread != null && enteringCallbacksThread.isAlive())
-            return;
-        enteringCallbacksThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (arduinoCallbacksLock) {
-                        isInACallback = true;
-                }
-
-                if (callbacksTimeout == null || (callbacksTimeout != null && !callbacksTimeout.isAlive())) {
-                    callbacksTimeout = new TimeOut(5, new TimeOut.TimeoutHandler() {
-                        @Override
-                        public void onTimeout() {
-                                callbackExited();
-                        }
-
-                        @Override
-                        public void onTick(int secondsLeft) {
-
-                        }
-                    });
-                } else
-                    callbacksTimeout.resetTimer();
-
+        synchronized (arduinoCallbacksLock) {
+            outboundFrameScheduler.callbackEntered();
+            if (callbacksTimeout == null || !callbacksTimeout.isAlive()) {
+                callbacksTimeout = new TimeOut(5, new TimeOut.TimeoutHandler() {
+                    @Override
+                    public void onTimeout() {
+                        callbackExited();
+                    }
 
-            }
-        });
-        enteringCallbacksThread.start();
+                    @Override
+                    public void onTick(int secondsLeft) {
 
+                    }
+                });
+            } else
+                callbacksTimeout.resetTimer();
+        }
     }
 
     private void callbackExited() {
+        outboundFrameScheduler.callbackExited();
         synchronized (arduinoCallbacksLock) {
-            isInACallback = false;
-            lastTimeCallbacksExited= SystemClock.elapsedRealtime();
+            if (callbacksTimeout != null) callbacksTimeout.stopTimer();
         }
-        if (callbacksTimeout != null && !callbacksTimeout.isAlive())callbacksTimeout.stopTimer();
-        if (exitingCallbacksThread != null && exitingCallbacksThread.isAlive())
-            return;
-        exitingCallbacksThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                boolean sent = false;
-                while (queuedFrames != null && !queuedFrames.isEmpty()) {
-                    sent = false;
-//                    boolean isInCallback;
-                    synchronized (arduinoCallbacksLock) {
-//                        isInCallback = isInACallback;
-                        if (!isInACallback&&lastTimeCallbacksExited!=0&&(SystemClock.elapsedRealtime()-lastTimeCallbacksExited>200)) {
-                            sendFrame(queuedFrames.poll());
-                            sent = true;
-                        }
-                    }
-
-//                    if (!isInCallback&&lastTimeCallbacksExited!=0&&(System.currentTimeMillis()-lastTimeCallbacksExited>100)) {
-//                        sendFrame(queuedFrames.poll());
-//                        sent = true;
-//                    }
-                    
-                    if (sent)
-                        try {
-                            Thread.sleep(200);
-                        } catch (InterruptedException e) {
-                        }
-                }
-            }
-        });
-        exitingCallbacksThread.start();
     }
 
     public void clearArduinoFirmataEventHandlers() {
@@ -843,153 +828,25 @@ public class ArduinoFirmata {
 
     public void clearArduinoFirmataShieldFrameHandlers() {
         frameHandlers.clear();
-    }
-
-    public void clearArduinoFirmataDataHandlers() {
-        dataHandlers.clear();
-    }
-
-    private class UartListeningThread extends Thread {
-        public UartListeningThread() {
-            start();
-        }
-
-        private void stopRunning() {
-            if (this.isAlive())
-                this.interrupt();
-        }
-
-        @Override
-        public void run() {
-            // TODO Auto-generated method stub
-            while (!this.isInterrupted()) {
-                try {
-                    while ((readByteFromUartBuffer()) != ShieldFrame.START_OF_FRAME)
-                        ;
-                    if (ShieldFrameTimeout != null)
-                        ShieldFrameTimeout.stopTimer();
-                    ShieldFrameTimeout = new TimeOut(1);
-                    int tempArduinoLibVersion = readByteFromUartBuffer();
-                    byte shieldId = readByteFromUartBuffer();
-                    boolean found = false;
-                    for (UIShield shield : UIShield.values()) {
-                        if (shieldId == shield.getId() || shieldId == CONFIGURATION_SHIELD_ID)
-                            found = true;
-                    }
-                    if (!found) {
-                        if (ShieldFrameTimeout != null)
-                            ShieldFrameTimeout.stopTimer();
-                        uartBuffer.clear();
-                        continue;
-                    }
-                    byte instanceId = readByteFromUartBuffer();
-                    byte functionId = readByteFromUartBuffer();
-                    ShieldFrame frame = new ShieldFrame(shieldId, instanceId,
-                            functionId);
-                    int argumentsNumber = readByteFromUartBuffer() & 0xFF;
-                    int argumentsNumberVerification = (255 - (readByteFromUartBuffer() & 0xFF));
-                    if (argumentsNumber != argumentsNumberVerification) {
-                        if (ShieldFrameTimeout != null)
-                            ShieldFrameTimeout.stopTimer();
-                        uartBuffer.clear();
-                        continue;
-                    }
-                    for (int i = 0; i < argumentsNumber; i++) {
-                        int length = readByteFromUartBuffer() & 0xff;
-                        int lengthVerification = (255 - (readByteFromUartBuffer() & 0xFF));
-                        if (length != lengthVerification || length <= 0) {
-                            if (ShieldFrameTimeout != null)
-                                ShieldFrameTimeout.stopTimer();
-                            uartBuffer.clear();
-                            continue;
-                        }
-                        byte[] data = new byte[length];
-                        for (int j = 0; j < length; j++) {
-                            data[j] = readByteFromUartBuffer();
-                        }
-                        frame.addArgument(data);
-                    }
-                    if ((readByteFromUartBuffer()) != ShieldFrame.END_OF_FRAME) {
-                        if (ShieldFrameTimeout != null)
-                            ShieldFrameTimeout.stopTimer();
-                        uartBuffer.clear();
-                        continue;
-                    }
-                    if (ShieldFrameTimeout != null)
-                        ShieldFrameTimeout.stopTimer();
-                    if (arduinoLibraryVersion != tempArduinoLibVersion) {
-                        arduinoLibraryVersion = tempArduinoLibVersion;
-                        for (ArduinoLibraryVersionChangeHandler handler : arduinoLibraryVersionChangeHandlers) {
-                            handler.onArduinoLibraryVersionChange(arduinoLibraryVersion);
-                        }
-                    }
-                    printFrameToLog(frame.getAllFrameAsBytes(), "Rec");
-                    if (shieldId == CONFIGURATION_SHIELD_ID) {
-                        //1Sheeld configration from the library
-                        if (functionId == LIBRARY_VERSION_RESPONSE) {
-
-                        } else if (functionId == IS_HARDWARE_CONNECTED_QUERY) {
-                            notifyHardwareOfConnection();
-                        } else if (functionId == IS_CALLBACK_ENTERED) {
-                            callbackEntered();
-                        } else if (functionId == IS_CALLBACK_EXITED) {
-                            callbackExited();
-                        }
-                    } else for (ArduinoFirmataShieldFrameHandler frameHandler : frameHandlers) {
-                        frameHandler.onNewShieldFrameReceived(frame);
-                    }
-                } catch (InterruptedException e) {
-                    return;
-                } catch (ShieldFrameNotComplete e) {
-                    if (ShieldFrameTimeout != null)
-                        ShieldFrameTimeout.stopTimer();
-                    ShieldFrameTimeout = null;
-                    // uartBuffer.clear();
-                    continue;
-                }
+        synchronized (shieldFrameRoutes) {
+            for (int id = 0; id < shieldFrameRoutes.length(); id++) {
+                shieldFrameRoutes.set(id, null);
             }
         }
     }
 
-    private class ShieldFrameNotComplete extends Exception {
-
-        /**
-         *
-         */
-        private static final long serialVersionUID = 1L;
-
+    public void clearArduinoFirmataDataHandlers() {
+        dataHandlers.clear();
     }
 
-    private class BluetoothBufferListeningThread extends Thread {
-        public BluetoothBufferListeningThread() {
-            // TODO Auto-generated constructor stub
-            start();
-        }
-
-        private void stopRunning() {
-            if (this.isAlive())
-                this.interrupt();
-        }
-
-        @Override
-        public void run() {
-            // TODO Auto-generated method stub
-            byte input;
-            while (!this.isInterrupted()) {
-
-                try {
-                    input = readByteFromBluetoothBuffer();
-                    if (!isBootloader)
-                        processInput(input);
-                    else {
-                        resetBluetoothSysex(input);
-                    }
-                } catch (InterruptedException e) {
-                    return;
-                }
+    private static class ShieldFrameRoute {
+        final ArduinoFirmataShieldFrameHandler handler;
+        final int instanceId;
 
-            }
+        ShieldFrameRoute(ArduinoFirmataShieldFrameHandler handler, int instanceId) {
+            this.handler = handler;
+            this.instanceId = instanceId;
         }
     }
 
-}
\ No newline at end of file
+}
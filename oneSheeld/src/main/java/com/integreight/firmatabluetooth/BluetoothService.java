@@ -21,8 +21,6 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
 
 import com.integreight.onesheeld.utils.Log;
 
@@ -397,9 +395,7 @@ public class BluetoothService {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-        Handler writeHandler;
-        Looper writeHandlerLooper;
-        Thread LooperThread;
+        private volatile CoalescingWriter writer;
 
         public ConnectedThread(BluetoothSocket socket) {
             Log.d(TAG, "create ConnectedThread");
@@ -424,20 +420,22 @@ public class BluetoothService {
             Log.i(TAG, "BEGIN mConnectedThread");
             if (mmDevice == null)
                 return;
-            LooperThread = new Thread(new Runnable() {
+            CoalescingWriter coalescingWriter = new CoalescingWriter(mmOutStream, new CoalescingWriter.CoalescingWriterHandler() {
+                @Override
+                public void onDataWritten(byte[] bytes) {
+                    for (BluetoothServiceHandler handler : handlers) {
+                        handler.onDataWritten(bytes);
+                    }
+                }
 
                 @Override
-                public void run() {
-                    // TODO Auto-generated method stub
-                    Looper.prepare();
-                    writeHandlerLooper = Looper.myLooper();
-                    writeHandler = new Handler();
-                    Looper.loop();
+                public void onWriteError(IOException e) {
+                    connectionLost();
+                    Log.e(TAG, "Exception during write", e);
                 }
             });
-            LooperThread.start();
-            while (!LooperThread.isAlive())
-                ;
+            coalescingWriter.start();
+            writer = coalescingWriter;
             setState(STATE_CONNECTED);
             for (BluetoothServiceHandler handler : handlers) {
                 handler.onConnected(mmDevice);
@@ -457,40 +455,24 @@ public class BluetoothService {
                     // e.printStackTrace();
                     Log.e(TAG, "disconnected", e);
                     // if(!closedManually)
-                    if (writeHandlerLooper != null)
-                        writeHandlerLooper.quit();
+                    coalescingWriter.stopWriting();
                     connectionLost();
                     break;
                 }
             }
         }
 
-        public synchronized void write(final byte[] buffer) {
-            if (writeHandler == null)
+        public void write(final byte[] buffer) {
+            CoalescingWriter coalescingWriter = writer;
+            if (coalescingWriter == null)
                 return;
-            writeHandler.post(new Runnable() {
-
-                @Override
-                public void run() {
-                    // TODO Auto-generated method stub
-                    try {
-                        mmOutStream.write(buffer);
-                        for (BluetoothServiceHandler handler : handlers) {
-                            handler.onDataWritten(buffer);
-                        }
-
-                    } catch (IOException e) {
-                        if (writeHandlerLooper != null)
-                            writeHandlerLooper.quit();
-                        connectionLost();
-                        Log.e(TAG, "Exception during write", e);
-                    }
-                }
-            });
-
+            coalescingWriter.write(buffer);
         }
 
         public synchronized void cancel() {
+            CoalescingWriter coalescingWriter = writer;
+            if (coalescingWriter != null)
+                coalescingWriter.stopWriting();
             try {
                 closeSocket(mmSocket);
             } catch (IOException e) {
@@ -0,0 +1,142 @@
+package com.integreight.firmatabluetooth;
+
+import com.integreight.onesheeld.utils.Log;
+
+/**
+ * Single-producer/single-consumer ring of primitive bytes.
+ * The producer never blocks: bytes that don't fit are dropped, counted and
+ * logged once each time the buffer overflows.
+ * The consumer blocks in {@link #take()} and {@link #drain(byte[], int, int)}
+ * until data arrives or its thread is interrupted.
+ */
+public class ByteRingBuffer {
+    private static final String TAG = "ByteRingBuffer";
+    private final byte[] buffer;
+    private final int mask;
+    private final Object lock = new Object();
+    private volatile int writeIndex = 0;
+    private volatile int readIndex = 0;
+    private volatile boolean consumerWaiting = false;
+    private long droppedBytes = 0;
+    private boolean isOverflowing = false;
+
+    public ByteRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        return writeIndex - readIndex;
+    }
+
+    public boolean isEmpty() {
+        return writeIndex == readIndex;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public int put(byte data) {
+        int write = writeIndex;
+        if (write - readIndex >= buffer.length) {
+            onOverflow(1);
+            return 0;
+        }
+        isOverflowing = false;
+        buffer[write & mask] = data;
+        writeIndex = write + 1;
+        signalConsumer();
+        return 1;
+    }
+
+    public int put(byte[] src, int offset, int length) {
+        if (length <= 0)
+            return 0;
+        int write = writeIndex;
+        int free = buffer.length - (write - readIndex);
+        int count = Math.min(free, length);
+        if (count < length)
+            onOverflow(length - count);
+        else
+            isOverflowing = false;
+        if (count <= 0)
+            return 0;
+        int start = write & mask;
+        int firstPart = Math.min(count, buffer.length - start);
+        System.arraycopy(src, offset, buffer, start, firstPart);
+        if (firstPart < count)
+            System.arraycopy(src, offset + firstPart, buffer, 0, count - firstPart);
+        writeIndex = write + count;
+        signalConsumer();
+        return count;
+    }
+
+    public byte take() throws InterruptedException {
+        awaitData();
+        int read = readIndex;
+        byte data = buffer[read & mask];
+        readIndex = read + 1;
+        return data;
+    }
+
+    public int drain(byte[] dst, int offset, int length) throws InterruptedException {
+        if (length <= 0)
+            return 0;
+        awaitData();
+        return poll(dst, offset, length);
+    }
+
+    public int poll(byte[] dst, int offset, int length) {
+        int read = readIndex;
+        int count = Math.min(writeIndex - read, length);
+        if (count <= 0)
+            return 0;
+        int start = read & mask;
+        int firstPart = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, firstPart);
+        if (firstPart < count)
+            System.arraycopy(buffer, 0, dst, offset + firstPart, count - firstPart);
+        readIndex = read + count;
+        return count;
+    }
+
+    public void clear() {
+        readIndex = writeIndex;
+    }
+
+    private void onOverflow(int count) {
+        droppedBytes += count;
+        if (!isOverflowing) {
+            isOverflowing = true;
+            Log.e(TAG, "Buffer full, dropping received bytes (" + droppedBytes + " dropped so far)");
+        }
+    }
+
+    private void awaitData() throws InterruptedException {
+        if (!isEmpty())
+            return;
+        synchronized (lock) {
+            consumerWaiting = true;
+            try {
+                while (isEmpty())
+                    lock.wait();
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+    }
+
+    private void signalConsumer() {
+        if (consumerWaiting) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+}
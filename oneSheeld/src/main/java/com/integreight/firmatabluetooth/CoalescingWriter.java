@@ -0,0 +1,140 @@
+package com.integreight.firmatabluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer thread that collects every pending write into one contiguous
+ * buffer and hands it to the stream with a single write call. Any thread
+ * may call {@link #write(byte[])}; only the writer thread touches the stream.
+ */
+public class CoalescingWriter extends Thread {
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1024;
+
+    public interface CoalescingWriterHandler {
+        void onDataWritten(byte[] bytes);
+
+        void onWriteError(IOException e);
+    }
+
+    private final OutputStream outputStream;
+    private final CoalescingWriterHandler handler;
+    private final ConcurrentLinkedQueue<byte[]> pendingWrites = new ConcurrentLinkedQueue<byte[]>();
+    private final ArrayList<byte[]> batch = new ArrayList<byte[]>();
+    private byte[] buffer;
+    private volatile boolean running = true;
+    private volatile long maxDelayNanos = 0;
+    private volatile int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    private volatile long writesCount = 0;
+    private volatile long bytesCount = 0;
+    private volatile long requestsCount = 0;
+
+    public CoalescingWriter(OutputStream outputStream, CoalescingWriterHandler handler) {
+        super("CoalescingWriter");
+        this.outputStream = outputStream;
+        this.handler = handler;
+        buffer = new byte[DEFAULT_MAX_BATCH_BYTES];
+    }
+
+    /**
+     * @param maxDelayMicros how long a write may wait for others to join it, 0 flushes immediately
+     * @param maxBatchBytes  flush as soon as this many bytes are pending
+     */
+    public void setFlushPolicy(long maxDelayMicros, int maxBatchBytes) {
+        this.maxDelayNanos = Math.max(0, maxDelayMicros) * 1000L;
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    public void write(byte[] bytes) {
+        if (!running || bytes == null || bytes.length == 0)
+            return;
+        pendingWrites.add(bytes);
+        LockSupport.unpark(this);
+    }
+
+    public void stopWriting() {
+        running = false;
+        pendingWrites.clear();
+        LockSupport.unpark(this);
+    }
+
+    public long getWritesCount() {
+        return writesCount;
+    }
+
+    public long getBytesCount() {
+        return bytesCount;
+    }
+
+    public long getRequestsCount() {
+        return requestsCount;
+    }
+
+    public float getAverageBytesPerWrite() {
+        long writes = writesCount;
+        return writes == 0 ? 0 : (float) bytesCount / writes;
+    }
+
+    @Override
+    public void run() {
+        byte[] next = null;
+        while (running) {
+            if (next == null)
+                next = pendingWrites.poll();
+            if (next == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            int limit = maxBatchBytes;
+            long deadline = System.nanoTime() + maxDelayNanos;
+            int length = 0;
+            while (next != null) {
+                if (length > 0 && length + next.length > limit)
+                    break;
+                ensureCapacity(length + next.length);
+                System.arraycopy(next, 0, buffer, length, next.length);
+                length += next.length;
+                batch.add(next);
+                next = null;
+                if (length >= limit)
+                    break;
+                next = pendingWrites.poll();
+                while (next == null && maxDelayNanos > 0 && running) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    LockSupport.parkNanos(this, remaining);
+                    next = pendingWrites.poll();
+                }
+            }
+            if (!running)
+                break;
+            try {
+                outputStream.write(buffer, 0, length);
+                writesCount++;
+                bytesCount += length;
+                requestsCount += batch.size();
+                for (byte[] written : batch) {
+                    handler.onDataWritten(written);
+                }
+            } catch (IOException e) {
+                running = false;
+                handler.onWriteError(e);
+            }
+            batch.clear();
+        }
+        batch.clear();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+            buffer = newBuffer;
+        }
+    }
+}
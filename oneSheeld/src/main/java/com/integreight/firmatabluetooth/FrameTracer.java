@@ -0,0 +1,109 @@
+package com.integreight.firmatabluetooth;
+
+import com.integreight.onesheeld.utils.Log;
+
+/**
+ * Fixed-size binary ring of the last sent and received frames. Recording a
+ * frame is a copy of its bytes into a preallocated slot; the oldest slot is
+ * overwritten once the ring is full. Frames longer than a slot are kept
+ * truncated along with their real length. Nothing is formatted until the
+ * ring is dumped.
+ */
+public class FrameTracer {
+    public static final byte DIRECTION_SENT = 0;
+    public static final byte DIRECTION_RECEIVED = 1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final int slotsCount;
+    private final int slotSize;
+    private final long[] timestamps;
+    private final byte[] directions;
+    private final byte[] shieldIds;
+    private final byte[] functionIds;
+    private final int[] lengths;
+    private final byte[] data;
+    private long recordedFrames = 0;
+    private volatile boolean enabled = false;
+
+    public FrameTracer(int slotsCount, int slotSize) {
+        this.slotsCount = slotsCount;
+        this.slotSize = slotSize;
+        timestamps = new long[slotsCount];
+        directions = new byte[slotsCount];
+        shieldIds = new byte[slotsCount];
+        functionIds = new byte[slotsCount];
+        lengths = new int[slotsCount];
+        data = new byte[slotsCount * slotSize];
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void record(byte direction, ShieldFrame frame) {
+        if (!enabled || frame == null)
+            return;
+        record(direction, frame.getShieldId(), frame.getFunctionId(),
+                frame.getFrameBuffer(), 0, frame.getFrameLength());
+    }
+
+    public synchronized void record(byte direction, byte shieldId, byte functionId,
+                                    byte[] bytes, int offset, int length) {
+        if (!enabled)
+            return;
+        int slot = (int) (recordedFrames % slotsCount);
+        timestamps[slot] = System.currentTimeMillis();
+        directions[slot] = direction;
+        shieldIds[slot] = shieldId;
+        functionIds[slot] = functionId;
+        lengths[slot] = length;
+        System.arraycopy(bytes, offset, data, slot * slotSize, Math.min(length, slotSize));
+        recordedFrames++;
+    }
+
+    public synchronized void clear() {
+        recordedFrames = 0;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(recordedFrames, slotsCount);
+    }
+
+    /**
+     * Logs the frames in the ring as one hex line each, oldest first, then
+     * clears it.
+     */
+    public synchronized void dump(String tag) {
+        int count = (int) Math.min(recordedFrames, slotsCount);
+        StringBuilder line = new StringBuilder();
+        for (long i = recordedFrames - count; i < recordedFrames; i++) {
+            int slot = (int) (i % slotsCount);
+            int stored = Math.min(lengths[slot], slotSize);
+            line.setLength(0);
+            line.append(timestamps[slot])
+                    .append(directions[slot] == DIRECTION_SENT ? " Sent " : " Rec ")
+                    .append("shield=");
+            appendHex(line, shieldIds[slot]);
+            line.append(" function=");
+            appendHex(line, functionIds[slot]);
+            line.append(" :");
+            for (int j = slot * slotSize; j < slot * slotSize + stored; j++) {
+                line.append(' ');
+                appendHex(line, data[j]);
+            }
+            if (lengths[slot] > stored)
+                line.append(" ... (").append(lengths[slot]).append(" bytes)");
+            Log.d(tag, line.toString());
+        }
+        recordedFrames = 0;
+    }
+
+    private static void appendHex(StringBuilder builder, byte b) {
+        builder.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+    }
+}
@@ -10,7 +10,6 @@ import com.integreight.onesheeld.utils.TimeOut.TimeoutHandler;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.LinkedBlockingQueue;
 
 public class Jodem {
 
@@ -29,7 +28,7 @@ public class Jodem {
 
     Thread fileSendingThread;
 
-    LinkedBlockingQueue<Byte> buffer = new LinkedBlockingQueue<Byte>();
+    ByteRingBuffer buffer = new ByteRingBuffer(4096);
 
     public interface JodemEventHandler {
         public void onError(String error);
@@ -317,7 +316,7 @@ public class Jodem {
 
     public byte readByteFromBuffer() throws InterruptedException {
         timeout.resetTimer();
-        return buffer.take().byteValue();
+        return buffer.take();
     }
 
     public int calculateChecksum(byte[] data) {
@@ -350,9 +349,7 @@ public class Jodem {
         @Override
         public void onDataReceived(byte[] bytes, int length) {
             // TODO Auto-generated method stub
-            for (int i = 0; i < length && i < bytes.length; i++) {
-                buffer.add(bytes[i]);
-            }
+            buffer.put(bytes, 0, Math.min(length, bytes.length));
 
         }
 
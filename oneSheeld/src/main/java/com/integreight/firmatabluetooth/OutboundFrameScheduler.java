@@ -0,0 +1,232 @@
+package com.integreight.firmatabluetooth;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Holds frames back while the Arduino sketch is inside a callback and
+ * releases them from one long-lived thread once it has exited, paced by a
+ * token bucket (one token every minimum gap, up to a burst of tokens).
+ */
+public class OutboundFrameScheduler {
+    public static final long DEFAULT_EXIT_SETTLE_MILLIS = 200;
+    public static final long DEFAULT_MIN_GAP_MILLIS = 50;
+    public static final int DEFAULT_BURST = 1;
+    private static final int INITIAL_QUEUE_CAPACITY = 16;
+
+    public interface FrameSender {
+        void sendFrame(ShieldFrame frame);
+    }
+
+    private final FrameSender sender;
+    private final Object lock = new Object();
+    // Frames and the times they were queued, in two rings sharing one head
+    private ShieldFrame[] queuedFrames = new ShieldFrame[INITIAL_QUEUE_CAPACITY];
+    private long[] queuedTimes = new long[INITIAL_QUEUE_CAPACITY];
+    private int queueHead = 0;
+    private int queueSize = 0;
+    private Thread schedulerThread;
+
+    private boolean isInACallback = false;
+    private long lastTimeCallbacksExited = 0;
+    private long exitSettleMillis = DEFAULT_EXIT_SETTLE_MILLIS;
+    private long minGapMillis = DEFAULT_MIN_GAP_MILLIS;
+    private int burst = DEFAULT_BURST;
+    private int tokens = DEFAULT_BURST;
+    private long lastRefillTime = 0;
+
+    private int maxQueueDepth = 0;
+    private long releasedFrames = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+
+    public OutboundFrameScheduler(FrameSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * @param exitSettleMillis time to wait after a callback exits before releasing frames
+     * @param minGapMillis     time needed to earn one more sending token
+     * @param burst            tokens that can be saved, 1 gives a fixed gap between frames
+     */
+    public void setPacing(long exitSettleMillis, long minGapMillis, int burst) {
+        synchronized (lock) {
+            this.exitSettleMillis = Math.max(0, exitSettleMillis);
+            this.minGapMillis = Math.max(0, minGapMillis);
+            this.burst = Math.max(1, burst);
+            tokens = Math.min(tokens, this.burst);
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isInACallback() {
+        synchronized (lock) {
+            return isInACallback;
+        }
+    }
+
+    public void callbackEntered() {
+        synchronized (lock) {
+            isInACallback = true;
+        }
+    }
+
+    public void callbackExited() {
+        synchronized (lock) {
+            isInACallback = false;
+            lastTimeCallbacksExited = SystemClock.elapsedRealtime();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues the frame if a callback is running or older frames are still
+     * waiting, otherwise leaves it to the caller to send right away.
+     *
+     * @return true if the frame was queued
+     */
+    public boolean queueIfBusy(ShieldFrame frame) {
+        synchronized (lock) {
+            if (!isInACallback && queueSize == 0)
+                return false;
+            queue(frame);
+            return true;
+        }
+    }
+
+    public void queue(ShieldFrame frame) {
+        if (frame == null)
+            return;
+        synchronized (lock) {
+            if (queueSize == queuedFrames.length)
+                growQueue();
+            int tail = (queueHead + queueSize) % queuedFrames.length;
+            queuedFrames[tail] = frame;
+            queuedTimes[tail] = SystemClock.elapsedRealtime();
+            queueSize++;
+            if (queueSize > maxQueueDepth)
+                maxQueueDepth = queueSize;
+            ensureStarted();
+            lock.notifyAll();
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            Arrays.fill(queuedFrames, null);
+            queueHead = 0;
+            queueSize = 0;
+            isInACallback = false;
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queueSize;
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        synchronized (lock) {
+            return maxQueueDepth;
+        }
+    }
+
+    public long getReleasedFramesCount() {
+        synchronized (lock) {
+            return releasedFrames;
+        }
+    }
+
+    public long getAverageWaitMillis() {
+        synchronized (lock) {
+            return releasedFrames == 0 ? 0 : totalWaitMillis / releasedFrames;
+        }
+    }
+
+    public long getMaxWaitMillis() {
+        synchronized (lock) {
+            return maxWaitMillis;
+        }
+    }
+
+    private void ensureStarted() {
+        if (schedulerThread != null)
+            return;
+        schedulerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    ShieldFrame frame;
+                    try {
+                        frame = takeReleasableFrame();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sender.sendFrame(frame);
+                }
+            }
+        }, "OutboundFrameScheduler");
+        schedulerThread.setDaemon(true);
+        schedulerThread.start();
+    }
+
+    private ShieldFrame takeReleasableFrame() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                // Nothing is released before the first callback has exited
+                if (queueSize == 0 || isInACallback || lastTimeCallbacksExited == 0) {
+                    lock.wait();
+                    continue;
+                }
+                long now = SystemClock.elapsedRealtime();
+                refillTokens(now);
+                long readyAt = lastTimeCallbacksExited + exitSettleMillis;
+                if (tokens == 0)
+                    readyAt = Math.max(readyAt, lastRefillTime + minGapMillis);
+                if (now < readyAt) {
+                    lock.wait(readyAt - now);
+                    continue;
+                }
+                tokens--;
+                ShieldFrame frame = queuedFrames[queueHead];
+                long waited = now - queuedTimes[queueHead];
+                queuedFrames[queueHead] = null;
+                queueHead = (queueHead + 1) % queuedFrames.length;
+                queueSize--;
+                releasedFrames++;
+                totalWaitMillis += waited;
+                if (waited > maxWaitMillis)
+                    maxWaitMillis = waited;
+                return frame;
+            }
+        }
+    }
+
+    private void growQueue() {
+        ShieldFrame[] frames = new ShieldFrame[queuedFrames.length * 2];
+        long[] times = new long[frames.length];
+        for (int i = 0; i < queueSize; i++) {
+            int index = (queueHead + i) % queuedFrames.length;
+            frames[i] = queuedFrames[index];
+            times[i] = queuedTimes[index];
+        }
+        queuedFrames = frames;
+        queuedTimes = times;
+        queueHead = 0;
+    }
+
+    private void refillTokens(long now) {
+        if (tokens >= burst || minGapMillis == 0) {
+            tokens = burst;
+            lastRefillTime = now;
+            return;
+        }
+        long earned = (now - lastRefillTime) / minGapMillis;
+        if (earned > 0) {
+            tokens = (int) Math.min(burst, tokens + earned);
+            lastRefillTime = tokens == burst ? now : lastRefillTime + earned * minGapMillis;
+        }
+    }
+}
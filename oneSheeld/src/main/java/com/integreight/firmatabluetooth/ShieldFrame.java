@@ -1,6 +1,5 @@
 package com.integreight.firmatabluetooth;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -9,173 +8,268 @@ public class ShieldFrame {
     public static final byte START_OF_FRAME = (byte) 0xFF;
     public static final byte END_OF_FRAME = (byte) 0x00;
 
-    private byte shieldId;
-    private byte instanceId;
-    private byte functionId;
-    private ArrayList<byte[]> arguments;
+    // start, shield id, instance id, function id, arguments number and its complement
+    private static final int HEADER_SIZE = 6;
+    private static final int INITIAL_CAPACITY = 32;
+    private static final int MAX_POOL_SIZE = 16;
+    private static final ShieldFrame[] pool = new ShieldFrame[MAX_POOL_SIZE];
+    private static int poolSize = 0;
+
+    // The frame is kept in its wire layout, every argument's offset points
+    // at its length byte.
+    private byte[] data;
+    private int length;
+    private int[] argumentOffsets;
+    private int argumentsCount;
+    private boolean pooled;
 
     public ShieldFrame(byte shieldId, byte instanceId, byte functionId) {
         // TODO Auto-generated constructor stub
-        this.shieldId = shieldId;
-        this.instanceId = instanceId;
-        this.functionId = functionId;
-        arguments = new ArrayList<byte[]>();
+        data = new byte[INITIAL_CAPACITY];
+        argumentOffsets = new int[4];
+        init(shieldId, instanceId, functionId);
     }
 
     public ShieldFrame(byte shieldId, byte functionId) {
         // TODO Auto-generated constructor stub
-        this.shieldId = shieldId;
-        this.instanceId = 0;
-        this.functionId = functionId;
-        arguments = new ArrayList<byte[]>();
+        this(shieldId, (byte) 0, functionId);
     }
 
     public ShieldFrame(byte shieldId) {
         // TODO Auto-generated constructor stub
-        this.shieldId = shieldId;
-        this.instanceId = 0;
-        this.functionId = 0;
-        arguments = new ArrayList<byte[]>();
+        this(shieldId, (byte) 0, (byte) 0);
+    }
+
+    public static ShieldFrame obtain(byte shieldId, byte instanceId, byte functionId) {
+        ShieldFrame frame = null;
+        synchronized (pool) {
+            if (poolSize > 0) {
+                frame = pool[--poolSize];
+                pool[poolSize] = null;
+            }
+        }
+        if (frame == null)
+            frame = new ShieldFrame(shieldId, instanceId, functionId);
+        else
+            frame.init(shieldId, instanceId, functionId);
+        frame.pooled = true;
+        return frame;
+    }
+
+    public static ShieldFrame obtain(byte shieldId, byte functionId) {
+        return obtain(shieldId, (byte) 0, functionId);
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    public void recycle() {
+        pooled = false;
+        synchronized (pool) {
+            if (poolSize < MAX_POOL_SIZE)
+                pool[poolSize++] = this;
+        }
+    }
+
+    private void init(byte shieldId, byte instanceId, byte functionId) {
+        data[0] = START_OF_FRAME;
+        data[1] = shieldId;
+        data[2] = instanceId;
+        data[3] = functionId;
+        argumentsCount = 0;
+        length = HEADER_SIZE + 1;
+        updateArgumentsCount();
     }
 
     public byte getShieldId() {
-        return shieldId;
+        return data[1];
     }
 
     public byte getInstanceId() {
-        return instanceId;
+        return data[2];
     }
 
     public byte getFunctionId() {
-        return functionId;
+        return data[3];
+    }
+
+    public int getArgumentsCount() {
+        return argumentsCount;
     }
 
     public ArrayList<byte[]> getArguments() {
+        ArrayList<byte[]> arguments = new ArrayList<byte[]>(argumentsCount);
+        for (int i = 0; i < argumentsCount; i++) {
+            arguments.add(getArgument(i));
+        }
         return arguments;
     }
 
+    public int getArgumentLength(int n) {
+        if (n < 0 || n >= argumentsCount)
+            return 0;
+        return data[argumentOffsets[n]] & 0xFF;
+    }
+
     public byte[] getArgument(int n) {
-        if (n >= arguments.size())
+        if (n < 0 || n >= argumentsCount)
             return null;
-        return arguments.get(n);
+        int offset = argumentOffsets[n];
+        return Arrays.copyOfRange(data, offset + 2, offset + 2 + (data[offset] & 0xFF));
     }
 
     public String getArgumentAsString(int n) {
-        if (n >= arguments.size())
+        if (n < 0 || n >= argumentsCount)
             return null;
-        return new String(arguments.get(n));
+        int offset = argumentOffsets[n];
+        return new String(data, offset + 2, data[offset] & 0xFF);
     }
 
     public int getArgumentAsInteger(int bytes, int n) {
-        if (n >= arguments.size()&&(bytes>4||bytes<1)&&arguments.get(n).length!=bytes)
+        if (n < 0 || n >= argumentsCount)
             return 0;
-        int value=0;
-        for (int i=0;i<bytes&&i<arguments.get(n).length;i++){
-            value|=((arguments.get(n)[i]<<(8*i))&((0xFF)<<(8*i)));
+        int offset = argumentOffsets[n];
+        int argumentLength = data[offset] & 0xFF;
+        int value = 0;
+        for (int i = 0; i < bytes && i < 4 && i < argumentLength; i++) {
+            value |= (data[offset + 2 + i] & 0xFF) << (8 * i);
         }
         return value;
     }
 
     public int getArgumentAsInteger(int n) {
-        return getArgumentAsInteger(2,n);
+        return getArgumentAsInteger(2, n);
     }
 
     public float getArgumentAsFloat(int n) {
-        byte[] b = getArgument(n);
-        if (n >= arguments.size() || b.length != 4)
+        if (getArgumentLength(n) != 4)
             return 0;
-        for (int i = 0; i < b.length / 2; i++) {
-            byte temp = b[i];
-            b[i] = b[b.length - i - 1];
-            b[b.length - i - 1] = temp;
-        }
-        return ByteBuffer.wrap(b).getFloat();
+        return Float.intBitsToFloat(getArgumentAsInteger(4, n));
     }
 
     public void addArgument(byte[] argument) {
-        arguments.add(Arrays.copyOfRange(argument,0,(argument.length>255)?255:argument.length));
+        addArgument(argument, 0, argument.length);
+    }
+
+    public void addArgument(byte[] argument, int offset, int argumentLength) {
+        int count = (argumentLength > 255) ? 255 : argumentLength;
+        int dataOffset = reserveArgument(count);
+        System.arraycopy(argument, offset, data, dataOffset, count);
     }
 
-    public void addByteArgument(byte data) {
-        arguments.add(new byte[]{data});
+    public void addByteArgument(byte value) {
+        // Reserve first, it may grow the buffer
+        int offset = reserveArgument(1);
+        data[offset] = value;
     }
 
     public void addCharArgument(char data) {
-        arguments.add(new byte[]{(byte) data});
+        addByteArgument((byte) data);
     }
 
     public void addBooleanArgument(boolean data) {
-        arguments.add(new byte[]{(byte) (data ? 1 : 0)});
+        addByteArgument((byte) (data ? 1 : 0));
     }
 
     public void addIntegerArgument(int bytes, int data) {
-        switch (bytes) {
-            case 0:
-                return;
-            case 1:
-                arguments.add(new byte[]{(byte) data});
-                break;
-            case 2:
-                arguments.add(new byte[]{(byte) data, (byte) (data >> 8)});
-                break;
-            case 3:
-                arguments.add(new byte[]{(byte) data, (byte) (data >> 8),
-                        (byte) (data >> 16)});
-                break;
-            case 4:
-                arguments.add(new byte[]{(byte) data, (byte) (data >> 8),
-                        (byte) (data >> 16), (byte) (data >>> 24)});
-                break;
-            default:
-                return;
-        }
+        if (bytes < 1 || bytes > 4)
+            return;
+        writeInteger(reserveArgument(bytes), bytes, data);
     }
 
     public void addFloatArgument(float f) {
-        byte[] data = ByteBuffer.allocate(4).putFloat(f).array();
-        arguments.add(new byte[]{data[3], data[2], data[1], data[0]});
-
+        writeInteger(reserveArgument(4), 4, Float.floatToIntBits(f));
     }
 
     public void addStringArgument(String data) {
         String temp = (data.length() > 255) ? data.substring(0, 255) : data;
-        arguments.add(temp.getBytes(Charset.forName("UTF-8")));
+        addArgument(temp.getBytes(Charset.forName("UTF-8")));
     }
 
-    public byte[] getAllFrameAsBytes() {
-        int totalSizeOfArguments = 0;
-        for (byte[] argument : arguments) {
-            totalSizeOfArguments += argument.length;
-        }
-        int frameSize = 7 + arguments.size() * 2 + totalSizeOfArguments;// 6:start,
-        // shield
-        // id,
-        // instance
-        // id,
-        // function
-        // id,
-        // size,
-        // size
-        // complement,
-        // end
-        byte[] data = new byte[frameSize];
-        data[0] = START_OF_FRAME;
-        data[1] = shieldId;
-        data[2] = instanceId;
-        data[3] = functionId;
-        data[4] = (byte) arguments.size();
-        data[5] = (byte) (255 - arguments.size());
-
-        for (int i = 0, j = 6; i < arguments.size(); i++) {
-            data[j] = (byte) arguments.get(i).length;
-            data[j + 1] = (byte) (255 - arguments.get(i).length);
-            for (int k = 0; k < arguments.get(i).length; k++) {
-                data[j + k + 2] = arguments.get(i)[k];
+    public boolean setIntegerArgument(int n, int bytes, int data) {
+        if (getArgumentLength(n) != bytes || bytes > 4)
+            return false;
+        writeInteger(argumentOffsets[n] + 2, bytes, data);
+        return true;
+    }
+
+    public boolean setFloatArgument(int n, float f) {
+        return setIntegerArgument(n, 4, Float.floatToIntBits(f));
+    }
+
+    public boolean setStringArgument(int n, String data) {
+        String temp = (data.length() > 255) ? data.substring(0, 255) : data;
+        return setArgument(n, temp.getBytes(Charset.forName("UTF-8")));
+    }
+
+    public boolean setArgument(int n, byte[] argument) {
+        if (n < 0 || n >= argumentsCount)
+            return false;
+        int newLength = (argument.length > 255) ? 255 : argument.length;
+        int offset = argumentOffsets[n];
+        int difference = newLength - (data[offset] & 0xFF);
+        if (difference != 0) {
+            int tail = offset + 2 + (data[offset] & 0xFF);
+            ensureCapacity(length + difference);
+            System.arraycopy(data, tail, data, tail + difference, length - tail);
+            length += difference;
+            for (int i = n + 1; i < argumentsCount; i++) {
+                argumentOffsets[i] += difference;
             }
-            j += arguments.get(i).length + 2;
+            data[offset] = (byte) newLength;
+            data[offset + 1] = (byte) (255 - newLength);
         }
-        data[frameSize - 1] = END_OF_FRAME;
+        System.arraycopy(argument, 0, data, offset + 2, newLength);
+        return true;
+    }
+
+    public void clearArguments() {
+        argumentsCount = 0;
+        length = HEADER_SIZE + 1;
+        updateArgumentsCount();
+    }
+
+    int reserveArgument(int argumentLength) {
+        if (argumentsCount == argumentOffsets.length)
+            argumentOffsets = Arrays.copyOf(argumentOffsets, argumentsCount * 2);
+        ensureCapacity(length + 2 + argumentLength);
+        int offset = length - 1;
+        data[offset] = (byte) argumentLength;
+        data[offset + 1] = (byte) (255 - argumentLength);
+        argumentOffsets[argumentsCount++] = offset;
+        length += 2 + argumentLength;
+        updateArgumentsCount();
+        return offset + 2;
+    }
+
+    byte[] getFrameBuffer() {
         return data;
     }
 
+    public int getFrameLength() {
+        return length;
+    }
+
+    private void writeInteger(int offset, int bytes, int value) {
+        for (int i = 0; i < bytes; i++) {
+            data[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > data.length)
+            data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+    }
+
+    private void updateArgumentsCount() {
+        data[4] = (byte) argumentsCount;
+        data[5] = (byte) (255 - argumentsCount);
+        data[length - 1] = END_OF_FRAME;
+    }
+
+    public byte[] getAllFrameAsBytes() {
+        return Arrays.copyOf(data, length);
+    }
+
 }
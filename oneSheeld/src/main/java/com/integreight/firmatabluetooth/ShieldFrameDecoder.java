@@ -0,0 +1,157 @@
+package com.integreight.firmatabluetooth;
+
+/**
+ * Incremental decoder for de-sysexed UART bytes. It keeps its position in
+ * the frame between calls, so it can be fed whatever bytes are available
+ * and hands every completed frame to its handler from the same call.
+ */
+public class ShieldFrameDecoder {
+    public interface ShieldFrameDecoderHandler {
+        void onFrameDecoded(int arduinoLibraryVersion, ShieldFrame frame);
+    }
+
+    private static final int WAITING_START_OF_FRAME = 0;
+    private static final int READING_LIBRARY_VERSION = 1;
+    private static final int READING_SHIELD_ID = 2;
+    private static final int READING_INSTANCE_ID = 3;
+    private static final int READING_FUNCTION_ID = 4;
+    private static final int READING_ARGUMENTS_NUMBER = 5;
+    private static final int READING_ARGUMENTS_NUMBER_VERIFICATION = 6;
+    private static final int READING_ARGUMENT_LENGTH = 7;
+    private static final int READING_ARGUMENT_LENGTH_VERIFICATION = 8;
+    private static final int READING_ARGUMENT_DATA = 9;
+    private static final int WAITING_END_OF_FRAME = 10;
+
+    private final ShieldFrameDecoderHandler handler;
+    private final boolean[] acceptedShieldIds = new boolean[256];
+    private long frameTimeoutNanos = 0;
+    private long lastByteTime;
+
+    private int state = WAITING_START_OF_FRAME;
+    private int arduinoLibraryVersion;
+    private byte shieldId;
+    private byte instanceId;
+    private ShieldFrame frame;
+    private int argumentsNumber;
+    private int argumentsRead;
+    private int argumentLength;
+    private int argumentBytesRead;
+    private int argumentOffset;
+
+    public ShieldFrameDecoder(ShieldFrameDecoderHandler handler) {
+        this.handler = handler;
+    }
+
+    public void acceptShieldId(byte shieldId) {
+        acceptedShieldIds[shieldId & 0xFF] = true;
+    }
+
+    public void setFrameTimeout(long millis) {
+        frameTimeoutNanos = millis * 1000000L;
+    }
+
+    public boolean isInsideFrame() {
+        return state != WAITING_START_OF_FRAME;
+    }
+
+    public void reset() {
+        state = WAITING_START_OF_FRAME;
+        frame = null;
+    }
+
+    /**
+     * Drops the current frame on a byte that doesn't fit it. The byte may be
+     * the start of the next frame, so it isn't dropped with it.
+     */
+    private void resync(byte data) {
+        reset();
+        if (data == ShieldFrame.START_OF_FRAME)
+            state = READING_LIBRARY_VERSION;
+    }
+
+    public void decode(byte[] buf, int off, int len) {
+        decode(buf, off, len, System.nanoTime());
+    }
+
+    void decode(byte[] buf, int off, int len, long now) {
+        if (len <= 0)
+            return;
+        if (state != WAITING_START_OF_FRAME && frameTimeoutNanos > 0
+                && now - lastByteTime > frameTimeoutNanos)
+            reset();
+        lastByteTime = now;
+        for (int i = off, end = off + len; i < end; i++) {
+            byte data = buf[i];
+            switch (state) {
+                case WAITING_START_OF_FRAME:
+                    if (data == ShieldFrame.START_OF_FRAME)
+                        state = READING_LIBRARY_VERSION;
+                    break;
+                case READING_LIBRARY_VERSION:
+                    arduinoLibraryVersion = data;
+                    state = READING_SHIELD_ID;
+                    break;
+                case READING_SHIELD_ID:
+                    if (!acceptedShieldIds[data & 0xFF]) {
+                        resync(data);
+                        break;
+                    }
+                    shieldId = data;
+                    state = READING_INSTANCE_ID;
+                    break;
+                case READING_INSTANCE_ID:
+                    instanceId = data;
+                    state = READING_FUNCTION_ID;
+                    break;
+                case READING_FUNCTION_ID:
+                    frame = new ShieldFrame(shieldId, instanceId, data);
+                    state = READING_ARGUMENTS_NUMBER;
+                    break;
+                case READING_ARGUMENTS_NUMBER:
+                    argumentsNumber = data & 0xFF;
+                    state = READING_ARGUMENTS_NUMBER_VERIFICATION;
+                    break;
+                case READING_ARGUMENTS_NUMBER_VERIFICATION:
+                    if (argumentsNumber != 255 - (data & 0xFF)) {
+                        resync(data);
+                        break;
+                    }
+                    argumentsRead = 0;
+                    state = argumentsNumber > 0 ? READING_ARGUMENT_LENGTH : WAITING_END_OF_FRAME;
+                    break;
+                case READING_ARGUMENT_LENGTH:
+                    argumentLength = data & 0xFF;
+                    state = READING_ARGUMENT_LENGTH_VERIFICATION;
+                    break;
+                case READING_ARGUMENT_LENGTH_VERIFICATION:
+                    if (argumentLength != 255 - (data & 0xFF) || argumentLength <= 0) {
+                        resync(data);
+                        break;
+                    }
+                    argumentOffset = frame.reserveArgument(argumentLength);
+                    argumentBytesRead = 0;
+                    state = READING_ARGUMENT_DATA;
+                    break;
+                case READING_ARGUMENT_DATA:
+                    int count = Math.min(argumentLength - argumentBytesRead, end - i);
+                    System.arraycopy(buf, i, frame.getFrameBuffer(), argumentOffset + argumentBytesRead, count);
+                    argumentBytesRead += count;
+                    i += count - 1;
+                    if (argumentBytesRead == argumentLength) {
+                        argumentsRead++;
+                        state = argumentsRead < argumentsNumber ? READING_ARGUMENT_LENGTH : WAITING_END_OF_FRAME;
+                    }
+                    break;
+                case WAITING_END_OF_FRAME:
+                    ShieldFrame decodedFrame = frame;
+                    if (data == ShieldFrame.END_OF_FRAME) {
+                        reset();
+                        handler.onFrameDecoded(arduinoLibraryVersion, decodedFrame);
+                    } else {
+                        resync(data);
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.integreight.firmatabluetooth;
+
+import java.util.Arrays;
+
+/**
+ * Encodes data as Firmata sysex messages, every byte split into two 7-bit
+ * bytes, directly into one reusable output buffer. Not thread safe.
+ */
+public class SysexEncoder {
+    private byte[] buffer = new byte[128];
+    private int length = 0;
+
+    public SysexEncoder reset() {
+        length = 0;
+        return this;
+    }
+
+    public SysexEncoder appendSysex(byte command, byte[] data, int offset, int count) {
+        ensureCapacity(length + count * 2 + 3);
+        byte[] out = buffer;
+        int j = length;
+        out[j++] = ArduinoFirmata.START_SYSEX;
+        out[j++] = command;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int b = data[i] & 0xFF;
+            out[j++] = (byte) (b & 127);
+            out[j++] = (byte) (b >> 7);
+        }
+        out[j++] = ArduinoFirmata.END_SYSEX;
+        length = j;
+        return this;
+    }
+
+    /**
+     * Splits the data into as many sysex messages as needed so that none
+     * carries more than maxBytesPerSysex unencoded bytes.
+     */
+    public SysexEncoder appendSplitSysex(byte command, byte[] data, int offset, int count, int maxBytesPerSysex) {
+        int chunks = (count + maxBytesPerSysex - 1) / maxBytesPerSysex;
+        ensureCapacity(length + count * 2 + chunks * 3);
+        for (int i = offset, end = offset + count; i < end; i += maxBytesPerSysex) {
+            appendSysex(command, data, i, Math.min(maxBytesPerSysex, end - i));
+        }
+        return this;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+}
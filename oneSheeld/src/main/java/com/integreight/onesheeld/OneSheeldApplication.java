@@ -133,6 +133,7 @@ public class OneSheeldApplication extends Application {
         ParseInstallation.getCurrentInstallation().saveInBackground();
         initTaskerPins();
         isDebuggable = (0 != (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE));
+        getAppFirmata().setFrameTracingEnabled(isDebuggable);
         if (isDebuggable()
                 && (ParseInstallation.getCurrentInstallation().getList(
                 "channels") == null || !ParseInstallation
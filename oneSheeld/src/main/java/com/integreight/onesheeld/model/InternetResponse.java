@@ -86,7 +86,7 @@ public class InternetResponse implements Parcelable, Serializable {
     public ArrayList<JsonNode> getNodes(ShieldFrame frame) {
         ArrayList<JsonNode> nodes = new ArrayList<>();
         int dataType = frame.getArgumentAsInteger(1);
-        for (int i = 2; i < frame.getArguments().size(); i++) {
+        for (int i = 2; i < frame.getArgumentsCount(); i++) {
             JsonNode node = new JsonNode();
             if (BitsUtils.isBitSet(dataType, i - 2)) {
                 node.setDataType(JsonNode.NODE_DATA_TYPE.OBJECT);
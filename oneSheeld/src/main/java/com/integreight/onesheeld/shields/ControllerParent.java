@@ -191,8 +191,18 @@ public abstract class ControllerParent<T extends ControllerParent<?>> {
     private void setFirmataEventHandler() {
         ((OneSheeldApplication) activity.getApplication()).getAppFirmata()
                 .addDataHandler(arduinoFirmataDataHandler);
+        registerShieldFrameHandler();
+    }
+
+    /**
+     * route only this shield's frames to its frame handler
+     */
+    private void registerShieldFrameHandler() {
+        if (!(ControllerParent.this instanceof TaskerShield)
+                && (tag == null || AppShields.getInstance().getShield(tag) == null))
+            return;
         ((OneSheeldApplication) activity.getApplication()).getAppFirmata()
-                .addShieldFrameHandler(arduinoFirmataShieldFrameHandler);
+                .addShieldFrameHandler(getShieldId(), arduinoFirmataShieldFrameHandler);
     }
 
     // Interface implemented for listening to Arduino actions
@@ -310,6 +320,7 @@ public abstract class ControllerParent<T extends ControllerParent<?>> {
     public ControllerParent<T> init(String tag, boolean manageShieldSelectionFrameManually) {
         this.tag = tag;
         isALive = true;
+        registerShieldFrameHandler();
         if (getApplication().getRunningShields().get(tag) == null)
             getApplication().getRunningShields().put(tag, this);
         selectionTime = SystemClock.elapsedRealtime();
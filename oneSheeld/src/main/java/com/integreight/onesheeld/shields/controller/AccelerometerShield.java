@@ -1,43 +1,33 @@
 package com.integreight.onesheeld.shields.controller;
 
 import android.app.Activity;
-import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.os.Handler;
 
 import com.integreight.firmatabluetooth.ShieldFrame;
 import com.integreight.onesheeld.enums.UIShield;
 import com.integreight.onesheeld.shields.ControllerParent;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStream;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStreamHandler;
 import com.integreight.onesheeld.utils.Log;
 
-public class AccelerometerShield extends ControllerParent<AccelerometerShield>
-        implements SensorEventListener {
+public class AccelerometerShield extends ControllerParent<AccelerometerShield> {
     public static final byte ACCELEROMETER_VALUE = 0x01;
-    private SensorManager mSensorManager;
-    private Sensor mAccelerometer;
     private AccelerometerEventHandler eventHandler;
-    private ShieldFrame frame;
-    Handler handler;
-    int PERIOD = 100;
-    boolean flag = false;
-    boolean isHandlerLive = false;
-    float oldInput_x = 0, oldInput_y = 0, oldInput_z = 0;
-    boolean isFirstTime = true;
-
-    private final Runnable processSensors = new Runnable() {
-        @Override
-        public void run() {
-            // Do work with the sensor values.
-
-            flag = true;
-            // The Runnable is posted to run again here:
-            if (handler != null)
-                handler.postDelayed(this, PERIOD);
-        }
-    };
+    private final SensorStream sensorStream = new SensorStream(Sensor.TYPE_ACCELEROMETER,
+            UIShield.ACCELEROMETER_SHIELD.getId(), ACCELEROMETER_VALUE, 3, 0,
+            new SensorStreamHandler() {
+                @Override
+                public void onSensorFrame(ShieldFrame frame) {
+                    sendShieldFrame(frame);
+                }
+
+                @Override
+                public void onSensorValues(float[] values) {
+                    if (eventHandler != null)
+                        eventHandler.onSensorValueChangedFloat(values);
+                }
+            });
 
     public AccelerometerShield() {
     }
@@ -56,10 +46,6 @@ public class AccelerometerShield extends ControllerParent<AccelerometerShield>
             com.integreight.onesheeld.shields.ControllerParent.SelectionAction selectionAction,
             boolean isToastable) {
         this.selectionAction = selectionAction;
-        mSensorManager = (SensorManager) getApplication().getSystemService(
-                Context.SENSOR_SERVICE);
-        mAccelerometer = mSensorManager
-                .getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
         registerSensorListener(isToastable);
         return super.invalidate(selectionAction, isToastable);
     }
@@ -72,67 +58,18 @@ public class AccelerometerShield extends ControllerParent<AccelerometerShield>
 
     @Override
     public void onNewShieldFrameReceived(ShieldFrame frame) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-
-        if (flag
-                && (oldInput_x != event.values[0]
-                || oldInput_y != event.values[1]
-                || oldInput_z != event.values[2] || isFirstTime)) {
-            frame = new ShieldFrame(UIShield.ACCELEROMETER_SHIELD.getId(),
-                    ACCELEROMETER_VALUE);
-            isFirstTime = false;
-            oldInput_x = event.values[0];
-            oldInput_y = event.values[1];
-            oldInput_z = event.values[2];
-            // frame.addByteArgument((byte) Math.round(event.values[0]));
-            frame.addFloatArgument(event.values[0]);
-            frame.addFloatArgument(event.values[1]);
-            frame.addFloatArgument(event.values[2]);
-            sendShieldFrame(frame);
-
-            if (eventHandler != null)
-                eventHandler.onSensorValueChangedFloat(event.values);
-
-            Log.d("Sensor Data of X", event.values[0] + "");
-            Log.d("Sensor Data of Y", event.values[1] + "");
-            Log.d("Sensor Data of Z", event.values[2] + "");
-            //
-            flag = false;
-        }
-
+        sensorStream.getOutputPolicy().onFrameReceived(frame);
     }
 
     // Register a listener for the sensor.
     public void registerSensorListener(boolean isToastable) {
-        // check on mSensorManager and sensor != null
-        if (mSensorManager == null | mAccelerometer == null) {
-            mSensorManager = (SensorManager) getApplication().getSystemService(
-                    Context.SENSOR_SERVICE);
-            mAccelerometer = mSensorManager
-                    .getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        }
-        if (mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER) != null) {
+        SensorStreamEngine engine = SensorStreamEngine.getInstance();
+        if (engine.hasSensor(getApplication(), sensorStream)) {
             // Success! There's sensor.
-            if (!isHandlerLive) {
-                handler = new Handler();
-                if (mAccelerometer != null)
-                    mSensorManager.registerListener(this, mAccelerometer,
-                            SensorManager.SENSOR_DELAY_GAME);
-                handler.post(processSensors);
+            if (!sensorStream.isStarted()) {
+                engine.start(getApplication(), sensorStream);
                 if (eventHandler != null)
                     eventHandler.isDeviceHasSensor(true);
-                isHandlerLive = true;
                 if (selectionAction != null)
                     selectionAction.onSuccess();
             } else {
@@ -145,25 +82,14 @@ public class AccelerometerShield extends ControllerParent<AccelerometerShield>
                 selectionAction.onFailure();
             if (isToastable)
                 activity.showToast("Device doesn't support this sensor!");
-
             if (eventHandler != null)
                 eventHandler.isDeviceHasSensor(false);
-
         }
     }
 
     // Unregister a listener for the sensor .
     public void unegisterSensorListener() {
-        // mSensorManager.unregisterListener(this);
-        if (mSensorManager != null && handler != null && mAccelerometer != null) {
-
-            mSensorManager.unregisterListener(this, mAccelerometer);
-            mSensorManager.unregisterListener(this);
-            if (processSensors != null)
-                handler.removeCallbacks(processSensors);
-            handler.removeCallbacksAndMessages(null);
-            isHandlerLive = false;
-        }
+        SensorStreamEngine.getInstance().stop(sensorStream);
     }
 
     public static interface AccelerometerEventHandler {
@@ -173,11 +99,10 @@ public class AccelerometerShield extends ControllerParent<AccelerometerShield>
         void isDeviceHasSensor(Boolean hasSensor);
 
     }
+
     @Override
     public void reset() {
-        // TODO Auto-generated method stub
         this.unegisterSensorListener();
-
     }
 
 }
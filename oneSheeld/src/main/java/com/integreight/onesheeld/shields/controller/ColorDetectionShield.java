@@ -19,6 +19,7 @@ import com.integreight.firmatabluetooth.ShieldFrame;
 import com.integreight.onesheeld.shields.ControllerParent;
 import com.integreight.onesheeld.shields.controller.utils.CameraHeadService;
 import com.integreight.onesheeld.shields.controller.utils.CameraUtils;
+import com.integreight.onesheeld.shields.controller.utils.ColorGridAnalyzer;
 
 import java.text.DecimalFormat;
 
@@ -27,10 +28,12 @@ public class ColorDetectionShield extends
     private static final byte SHIELD_ID = (byte) 0x05;
     private static final byte SEND_NORMAL_COLOR = (byte) 0x01;
     private static final byte SEND_FULL_COLORS = (byte) 0x02;
+    private static final byte SEND_GRID_COLORS = (byte) 0x03;
     private static final byte ENABLE_FULL_COLORS = (byte) 0x02;
     private static final byte ENABLE_NORMAL_COLOR = (byte) 0x03;
     private static final byte SET_CALC_MODE = (byte) 0x04;
     private static final byte SET_PATCH_SIZE = (byte) 0x05;
+    private static final byte SET_GRID_SIZE = (byte) 0x06;
     private static final byte SMALL_PATCH = (byte) 0x01;
     private static final byte MED_PATCH = (byte) 0x02;
     private static final byte LARGE_PATCH = (byte) 0x03;
@@ -40,7 +43,7 @@ public class ColorDetectionShield extends
     private ColorDetectionEventHandler colorEventHandler;
     boolean isCameraBound = false;
     private Messenger mService;
-    public static final int UNBIND_COLOR_DETECTOR = 2, SET_COLOR_DETECTION_OPERATION = 10, SET_COLOR_DETECTION_TYPE = 11, SET_COLOR_PATCH_SIZE = 12;
+    public static final int UNBIND_COLOR_DETECTOR = 2, SET_COLOR_DETECTION_OPERATION = 10, SET_COLOR_DETECTION_TYPE = 11, SET_COLOR_PATCH_SIZE = 12, SET_COLOR_GRID_SIZE = 17;
     private RECEIVED_FRAMES recevedFramesOperation = RECEIVED_FRAMES.CENTER;
     private COLOR_TYPE colorType = COLOR_TYPE.COMMON;
     private long lastSentMS = SystemClock.elapsedRealtime();
@@ -48,6 +51,13 @@ public class ColorDetectionShield extends
     int[] detected;
     ColorPalette currentPallete = ColorPalette._24_BIT_RGB;
     private PATCH_SIZE patchSize = PATCH_SIZE.LARGE;
+    // The grid is set from the frames thread and read on the messenger's looper
+    private final Object gridLock = new Object();
+    private int gridRows = 3;
+    private int gridColumns = 3;
+    private volatile boolean isGridMode = false;
+    private int[] lastSentGrid;
+    private final byte[] gridCellArgument = new byte[4];
     public boolean isBackPreview = true;
 
     @Override
@@ -102,6 +112,25 @@ public class ColorDetectionShield extends
 
     }
 
+    private void notifyGridSize() {
+        if (isCameraBound) {
+            Message msg = Message.obtain(null, SET_COLOR_GRID_SIZE);
+            msg.replyTo = mMessenger;
+            Bundle data = new Bundle();
+            synchronized (gridLock) {
+                data.putInt("rows", gridRows);
+                data.putInt("columns", gridColumns);
+            }
+            msg.setData(data);
+            try {
+                if (mService != null)
+                    mService.send(msg);
+            } catch (RemoteException e) {
+            }
+        } else
+            getApplication().bindService(new Intent(getActivity(), CameraHeadService.class), mConnection, Context.BIND_AUTO_CREATE);
+    }
+
     private void notifyColorDetectionOperation() {
         if (isCameraBound) {
             Message msg = Message.obtain(null, SET_COLOR_DETECTION_OPERATION);
@@ -144,6 +173,15 @@ public class ColorDetectionShield extends
                         colorEventHandler.enableFullColor();
                     }
                     recevedFramesOperation = RECEIVED_FRAMES.NINE_FRAMES;
+                    setGrid(3, 3, false);
+                    notifyColorDetectionOperation();
+                    break;
+                case SET_GRID_SIZE:
+                    if (colorEventHandler != null) {
+                        colorEventHandler.enableFullColor();
+                    }
+                    recevedFramesOperation = RECEIVED_FRAMES.NINE_FRAMES;
+                    setGrid(frame.getArgumentAsInteger(1, 0), frame.getArgumentAsInteger(1, 1), true);
                     notifyColorDetectionOperation();
                     break;
                 case ENABLE_NORMAL_COLOR:
@@ -154,7 +192,7 @@ public class ColorDetectionShield extends
                     notifyColorDetectionOperation();
                     break;
                 case SET_PALLETE:
-                    currentPallete = ColorPalette.get(frame.getArgument(0)[0]);
+                    setCurrentPallete(ColorPalette.get(frame.getArgument(0)[0]));
                     if (colorEventHandler != null) {
                         colorEventHandler.setPallete(currentPallete);
                     }
@@ -176,6 +214,16 @@ public class ColorDetectionShield extends
         }
     }
 
+    private void setGrid(int rows, int columns, boolean isGridMode) {
+        synchronized (gridLock) {
+            gridRows = Math.max(1, Math.min(ColorGridAnalyzer.MAX_GRID_SIZE, rows));
+            gridColumns = Math.max(1, Math.min(ColorGridAnalyzer.MAX_GRID_SIZE, columns));
+            this.isGridMode = isGridMode;
+            lastSentGrid = null;
+        }
+        notifyGridSize();
+    }
+
     public void setColorEventHandler(ColorDetectionEventHandler colorEventHandler) {
         this.colorEventHandler = colorEventHandler;
 
@@ -235,6 +283,7 @@ public class ColorDetectionShield extends
     }
 
     public void setCurrentPallete(ColorPalette currentPallete) {
+        currentPallete.buildLookupTable();
         this.currentPallete = currentPallete;
     }
 
@@ -291,21 +340,32 @@ public class ColorDetectionShield extends
                     public void handleMessage(Message msg) {
                         if (msg.what == CameraHeadService.GET_RESULT && msg.getData() != null) {
                             detected = msg.getData().getIntArray("detected");
-                            frame = new ShieldFrame(SHIELD_ID, recevedFramesOperation == RECEIVED_FRAMES.NINE_FRAMES ? SEND_FULL_COLORS : SEND_NORMAL_COLOR);
+                            int rows = msg.getData().getInt("rows", 3);
+                            int columns = msg.getData().getInt("columns", 3);
+                            boolean isGridFrame = isGridMode && recevedFramesOperation == RECEIVED_FRAMES.NINE_FRAMES;
+                            frame = isGridFrame ? null : new ShieldFrame(SHIELD_ID, recevedFramesOperation == RECEIVED_FRAMES.NINE_FRAMES ? SEND_FULL_COLORS : SEND_NORMAL_COLOR);
                             int i = 0;
                             for (int det : detected) {
                                 int color = getColorInRange(det, currentPallete);
                                 detected[i] = color;
-                                frame.addIntegerArgument(3, color);
+                                if (frame != null)
+                                    frame.addIntegerArgument(3, color);
                                 fullFrame = true;
                                 i++;
                             }
                             if (fullFrame && colorEventHandler != null) {
-                                colorEventHandler.onColorChanged(detected);
+                                if (recevedFramesOperation == RECEIVED_FRAMES.NINE_FRAMES)
+                                    colorEventHandler.onColorChanged(getPreviewCells(detected, rows, columns));
+                                else
+                                    colorEventHandler.onColorChanged(detected);
                             }
                             if (fullFrame && SystemClock.elapsedRealtime() - lastSentMS >= 100) {
-                                sendShieldFrame(frame);
-                                lastSentMS = SystemClock.elapsedRealtime();
+                                if (isGridFrame)
+                                    frame = getGridDeltaFrame(detected, rows, columns);
+                                if (frame != null) {
+                                    sendShieldFrame(frame);
+                                    lastSentMS = SystemClock.elapsedRealtime();
+                                }
                             }
                         } else if (msg.what == CameraHeadService.CRASHED) {
                             getApplication().bindService(new Intent(getActivity(), CameraHeadService.class), mConnection, Context.BIND_AUTO_CREATE);
@@ -323,6 +383,55 @@ public class ColorDetectionShield extends
         }).start();
     }
 
+    /**
+     * The preview only has room for 3x3 cells, larger or smaller grids are
+     * shown as the cells nearest to its corners, edges and center.
+     */
+    private static int[] getPreviewCells(int[] colors, int rows, int columns) {
+        if (rows == 3 && columns == 3 || colors.length != rows * columns)
+            return colors;
+        int[] cells = new int[9];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                cells[i * 3 + j] = colors[(i * (rows - 1) / 2) * columns + j * (columns - 1) / 2];
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Only the cells that changed since the last sent grid, each as an
+     * argument holding its index then its colour in the same 3 bytes as the
+     * other frames, after a first argument holding the grid's size.
+     *
+     * @param rows the grid the colors were detected on, frames from a grid
+     *             that was since replaced are dropped
+     */
+    private ShieldFrame getGridDeltaFrame(int[] colors, int rows, int columns) {
+        synchronized (gridLock) {
+            if (rows != gridRows || columns != gridColumns || colors.length != rows * columns)
+                return null;
+            boolean isFull = lastSentGrid == null || lastSentGrid.length != colors.length;
+            ShieldFrame deltaFrame = null;
+            for (int i = 0; i < colors.length; i++) {
+                if (!isFull && lastSentGrid[i] == colors[i])
+                    continue;
+                if (deltaFrame == null) {
+                    deltaFrame = new ShieldFrame(SHIELD_ID, SEND_GRID_COLORS);
+                    deltaFrame.addArgument(new byte[]{(byte) gridRows, (byte) gridColumns});
+                }
+                gridCellArgument[0] = (byte) i;
+                gridCellArgument[1] = (byte) colors[i];
+                gridCellArgument[2] = (byte) (colors[i] >> 8);
+                gridCellArgument[3] = (byte) (colors[i] >> 16);
+                deltaFrame.addArgument(gridCellArgument);
+            }
+            if (deltaFrame != null)
+                lastSentGrid = colors.clone();
+            return deltaFrame;
+        }
+    }
+
     public boolean isBackPreview() {
         return isBackPreview;
     }
@@ -361,6 +470,7 @@ public class ColorDetectionShield extends
             try {
                 mService.send(msg);
                 notifyPatchSize();
+                notifyGridSize();
                 notifyColorDetectionType();
                 notifyColorDetectionOperation();
             } catch (RemoteException e) {
@@ -387,22 +497,7 @@ public class ColorDetectionShield extends
     }
 
     int getColorInRange(int color, ColorPalette palette) {
-        int i = 0;
-        if (palette.isGrayscale) {
-            i = palette.getNumberOfBits();
-            int grayscale = (Color.red(color) + Color.green(color) + Color
-                    .blue(color)) / 3;
-            color = Color.rgb(grayscale, grayscale, grayscale);
-        } else
-            i = palette.getNumberOfBits() / 3;
-
-        int newR = (int) Math
-                .round(((Color.red(color) >>> (8 - i)) * (255 / (Math.pow(2, i) - 1))));
-        int newG = (int) Math
-                .round(((Color.green(color) >>> (8 - i)) * (255 / (Math.pow(2, i) - 1))));
-        int newB = (int) Math
-                .round(((Color.blue(color) >>> (8 - i)) * (255 / (Math.pow(2, i) - 1))));
-        return Color.rgb(newR, newG, newB);
+        return palette.getColorInRange(color);
     }
 
     public PATCH_SIZE getPatchSize() {
@@ -422,6 +517,7 @@ public class ColorDetectionShield extends
         private boolean isGrayscale;
         private int numberOfBits;
         private int index;
+        private volatile int[] lookupTable;
 
         ColorPalette(int numberOfBits, int index) {
             this.isGrayscale = false;
@@ -447,6 +543,37 @@ public class ColorDetectionShield extends
             return numberOfBits;
         }
 
+        /**
+         * Quantising is done per channel, so the table maps a channel value,
+         * or the sum of the 3 channels for grayscale palettes, to its level.
+         */
+        public synchronized void buildLookupTable() {
+            if (lookupTable != null)
+                return;
+            int i = isGrayscale ? numberOfBits : numberOfBits / 3;
+            int[] table = new int[isGrayscale ? 256 * 3 : 256];
+            for (int value = 0; value < table.length; value++) {
+                int channel = isGrayscale ? value / 3 : value;
+                table[value] = (int) Math
+                        .round(((channel >>> (8 - i)) * (255 / (Math.pow(2, i) - 1))));
+            }
+            lookupTable = table;
+        }
+
+        public int getColorInRange(int color) {
+            if (lookupTable == null)
+                buildLookupTable();
+            int[] table = lookupTable;
+            int red = Color.red(color);
+            int green = Color.green(color);
+            int blue = Color.blue(color);
+            if (isGrayscale) {
+                int level = table[red + green + blue];
+                return Color.rgb(level, level, level);
+            }
+            return Color.rgb(table[red], table[green], table[blue]);
+        }
+
         @Override
         public String toString() {
             double colorRange = Math.pow(2, numberOfBits);
@@ -71,7 +71,7 @@ public class DataLoggerShield extends ControllerParent<DataLoggerShield> {
         if (frame.getShieldId() == UIShield.DATA_LOGGER.getId()) {
             switch (frame.getFunctionId()) {
                 case START_LOGGING:
-                    if (frame.getArguments().size() > 0)
+                    if (frame.getArgumentsCount() > 0)
                         fileName = frame.getArgumentAsString(0);
                     else
                         fileName = null;
@@ -8,6 +8,7 @@ import android.view.MotionEvent;
 import com.integreight.firmatabluetooth.ShieldFrame;
 import com.integreight.onesheeld.enums.UIShield;
 import com.integreight.onesheeld.shields.ControllerParent;
+import com.integreight.onesheeld.shields.controller.utils.GlcdDisplayList;
 import com.integreight.onesheeld.shields.controller.utils.GlcdView;
 import com.integreight.onesheeld.shields.controller.utils.glcd.AnalogGauge;
 import com.integreight.onesheeld.shields.controller.utils.glcd.Button;
@@ -23,8 +24,7 @@ import com.integreight.onesheeld.shields.controller.utils.glcd.RoundRectangle;
 import com.integreight.onesheeld.shields.controller.utils.glcd.Shape;
 import com.integreight.onesheeld.shields.controller.utils.glcd.Slider;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by Moustafa Nasr on 6/7/2015.
@@ -44,8 +44,11 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
 
 
     private GlcdEventHandler glcdEventHandler;
-    public SparseArray<Shape> shapes = new SparseArray<>();
-    public SparseArray<SparseArray<Integer>> touchs;
+    // Changed by frames and touches holding this shield's lock, drawing only replays the display list recorded from it
+    private SparseArray<Shape> shapes = new SparseArray<>();
+    // Key of the shape touched at every pixel, indexed by x * glcdHeight + y
+    private final int[] touchs = new int[glcdWidth * glcdHeight];
+    public static final int NO_TOUCH = -1;
     public SparseArray<RadioGroup> radioGroups;
     private Shape tmpShape = null;
     public Integer currentPressedKey = null;
@@ -145,18 +148,17 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
 
     public void initializeGLcd() {
         if (!isInitialized) {
-            params = new ArrayList<>();
-            params.add(WHITE);
-            doOrder(ORDER_CLEAR, params);
+            doOrder(ORDER_CLEAR, WHITE);
             isInitialized = true;
         }
     }
 
-    List<Integer> params;
     GlcdView view;
+    private volatile GlcdDisplayList displayList;
+    private volatile boolean isShapesDirty = true;
 
     @Override
-    public void onNewShieldFrameReceived(ShieldFrame frame) {
+    public synchronized void onNewShieldFrameReceived(ShieldFrame frame) {
 
         if (frame.getShieldId() == SHIELD_ID) {
             if (glcdEventHandler != null) {
@@ -166,9 +168,7 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
                 case TYPE_GLCD:
                     switch (frame.getArgument(0)[0]) {
                         case GLCD_CLEAR:
-                            params = new ArrayList<>();
-                            params.add(WHITE);
-                            doOrder(ORDER_CLEAR, params);
+                            doOrder(ORDER_CLEAR, WHITE);
                             break;
                         case GLCD_CLEAR_RECTANGLE:
                             shapeX = frame.getArgumentAsInteger(1);
@@ -936,7 +936,7 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
                             shapeSize = 0;
                             shapeText = frame.getArgumentAsString(4);
                             addToShapes(new RadioButton(this, shapeX, shapeY, shapeSize, shapeKey, shapeText), shapeKey);
-                            if (frame.getArguments().size() > 5)
+                            if (frame.getArgumentsCount() > 5)
                                 getFromRadioGroups(frame.getArgumentAsInteger(5)).add(((RadioButton) getFromShapes(frame.getArgumentAsInteger(1))));
                             break;
                         case SHAPE_SET_POSTION:
@@ -1237,10 +1237,43 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
             }
             if (glcdEventHandler != null)
                 glcdEventHandler.setView(getView());
+            requestRedraw();
         }
 
     }
 
+    /**
+     * Marks the shapes changed. They're recorded once when the view draws its
+     * next frame, however many frames or touches change them before that.
+     */
+    public void requestRedraw() {
+        isShapesDirty = true;
+        GlcdView glcdView = glcdEventHandler != null && glcdEventHandler.getView() != null ? glcdEventHandler.getView() : view;
+        if (glcdView != null)
+            glcdView.requestRedraw();
+    }
+
+    /**
+     * Records the shapes into a new display list if they changed since the
+     * last one. The list is only replaced, with a single write, if it draws
+     * something different.
+     *
+     * @return the display list to draw, null until the shapes are first recorded
+     */
+    public GlcdDisplayList getDisplayList(GlcdView glcdView) {
+        if (isShapesDirty) {
+            synchronized (this) {
+                if (isShapesDirty) {
+                    isShapesDirty = false;
+                    GlcdDisplayList newDisplayList = glcdView.record(shapes);
+                    if (!newDisplayList.equals(displayList))
+                        displayList = newDisplayList;
+                }
+            }
+        }
+        return displayList;
+    }
+
     public int getShapesSize() {
         if (shapes != null)
             return this.shapes.size();
@@ -1321,46 +1354,51 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
         sendShieldFrame(frame, false);
     }
 
+    /**
+     * Releases the pressed shape when a touch leaves the display.
+     */
+    public synchronized void releasePressedShape() {
+        if (currentPressedKey != null && shapes.indexOfKey(currentPressedKey) > -1) {
+            shapes.get(currentPressedKey).setIsPressed(false);
+            requestRedraw();
+        }
+    }
+
     boolean sendFrame = false;
 
-    public synchronized boolean doOrder(int order, List<Integer> params) {
-        Integer BgColor = WHITE, key = 0, action = 0, touchId = 0, startX = 0, startY = 0, finalX = 0, finalY = 0;
+    public synchronized boolean doOrder(int order, int... params) {
+        int key = NO_TOUCH, action = 0, touchId = 0, startX = 0, startY = 0, finalX = 0, finalY = 0;
 
         switch (order) {
             case ORDER_SETTOUCH:
-                if (params.size() < 3)
+                if (params.length < 3)
                     return false;
-                startX = params.get(0);
-                startY = params.get(1);
-                touchId = params.get(2);
-                if (startX < touchs.size() && startX >= 0)
-                    if (startY < touchs.get(startX).size() && startY >= 0)
-                        touchs.get(startX).setValueAt(startY, touchId);
+                startX = params[0];
+                startY = params[1];
+                touchId = params[2];
+                if (startX < glcdWidth && startX >= 0)
+                    if (startY < glcdHeight && startY >= 0)
+                        touchs[startX * glcdHeight + startY] = touchId;
                 break;
             case ORDER_CLEAR:
-                if (params.size() < 0)
+                if (params.length < 0)
                     return false;
                 buttonCounter = 0;
                 shapes = new SparseArray<>();
                 radioGroups = new SparseArray<>();
-                touchs = new SparseArray<>();
-                for (int x = 0; x < glcdWidth; x++) {
-                    SparseArray<Integer> tempTouchs = new SparseArray<>();
-                    for (int y = 0; y < glcdHeight; y++) {
-                        tempTouchs.append(y, null);
-                    }
-                    touchs.append(x, tempTouchs);
-                }
+                Arrays.fill(touchs, NO_TOUCH);
+                requestRedraw();
                 break;
             case ORDER_HANDLETOUCH:
-                if (params.size() < 2)
+                if (params.length < 3)
                     return false;
 
-                action = params.get(0);
-                startX = params.get(1);
-                startY = params.get(2);
+                action = params[0];
+                startX = params[1];
+                startY = params[2];
 
-                if (touchs.size() > 0) {
+                if (startX >= 0 && startX < glcdWidth && startY >= 0 && startY < glcdHeight) {
+                    key = touchs[startX * glcdHeight + startY];
                     switch (action) {
                         case MotionEvent.ACTION_DOWN:
                             // press
@@ -1368,8 +1406,7 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
                                 if (shapes.indexOfKey(currentPressedKey) > -1)
                                     shapes.get(currentPressedKey).setIsPressed(false);
 
-                            key = touchs.get(startX).get(startY);
-                            if (key != null) {
+                            if (key != NO_TOUCH && shapes.get(key) != null) {
                                 sendFrame = shapes.get(key).setIsPressed(true);
                                 currentPressedKey = key;
 
@@ -1392,8 +1429,7 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
                                 if (shapes.indexOfKey(currentPressedKey) > -1)
                                     shapes.get(currentPressedKey).setIsPressed(false);
 
-                            key = touchs.get(startX).get(startY);
-                            if (key != null) {
+                            if (key != NO_TOUCH && shapes.get(key) != null) {
                                 sendFrame = shapes.get(key).setIsPressed(false);
 
                                 if (sendFrame) {
@@ -1410,8 +1446,7 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
                             break;
                         case MotionEvent.ACTION_MOVE:
                             // touch
-                            key = touchs.get(startX).get(startY);
-                            if (key != null) {
+                            if (key != NO_TOUCH && shapes.get(key) != null) {
                                 sendFrame = shapes.get(key).setTouched(startX, startY);
                                 if (sendFrame) {
                                     if (shapes.get(key).getClass().toString().equals(Slider.class.toString()))
@@ -1429,52 +1464,49 @@ public class GlcdShield extends ControllerParent<GlcdShield> {
                                     shapes.get(currentPressedKey).setIsPressed(false);
                             break;
                     }
+                    requestRedraw();
                 }
                 break;
             case ORDER_APPLYTOUCH:
-                if (params.size() < 0)
+                if (params.length < 0)
                     return false;
                 touchId = 0;
                 startX = 0;
                 startY = 0;
                 finalX = 0;
                 finalY = 0;
-                if (params.size() > 4) {
-                    startX = params.get(0);
+                if (params.length > 4) {
+                    startX = params[0];
                     if (startX < 0)
                         startX = 0;
                     else if (startX > glcdWidth)
                         startX = glcdWidth - 1;
 
-                    startY = params.get(1);
+                    startY = params[1];
                     if (startY < 0)
                         startY = 0;
                     else if (startY > glcdHeight)
                         startY = glcdHeight - 1;
 
-                    finalX = params.get(2);
+                    finalX = params[2];
                     if (finalX < 0)
                         finalX = 0;
                     else if (finalX > glcdWidth)
                         finalX = glcdWidth - 1;
 
-                    finalY = params.get(3);
+                    finalY = params[3];
                     if (finalY < 0)
                         finalY = 0;
                     else if (finalY > glcdHeight)
                         finalY = glcdHeight - 1;
 
-                    touchId = params.get(4);
+                    touchId = params[4];
                 } else {
                     return false;
                 }
-                if (touchs.size() > 0) {
+                if (startY < finalY) {
                     for (int x = startX; x < finalX; x++) {
-                        if (touchs.get(x).size() > 0) {
-                            for (int y = startY; y < finalY; y++) {
-                                touchs.get(x).setValueAt(y, touchId);
-                            }
-                        }
+                        Arrays.fill(touchs, x * glcdHeight + startY, x * glcdHeight + finalY, touchId);
                     }
                 }
                 break;
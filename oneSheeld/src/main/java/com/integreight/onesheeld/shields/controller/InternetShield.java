@@ -437,7 +437,7 @@ public class InternetShield extends
                                     frameJsonSent.addIntegerArgument(2, requestID);
                                     frameJsonSent.addStringArgument(result);
                                     frameJsonSent.addArgument(frame.getArgument(1));
-                                    for (int arg = 2; arg < frame.getArguments().size(); arg++) {
+                                    for (int arg = 2; arg < frame.getArgumentsCount(); arg++) {
                                         frameJsonSent.addArgument(frame.getArgument(arg));
                                     }
                                     sendShieldFrame(frameJsonSent, true);
@@ -491,7 +491,7 @@ public class InternetShield extends
                                         frameJsonSent.addIntegerArgument(2, requestID);
                                         frameJsonSent.addIntegerArgument(4, result);
                                         frameJsonSent.addArgument(frame.getArgument(1));
-                                        for (int arg = 2; arg < frame.getArguments().size(); arg++) {
+                                        for (int arg = 2; arg < frame.getArgumentsCount(); arg++) {
                                             frameJsonSent.addArgument(frame.getArgument(arg));
                                         }
                                         sendShieldFrame(frameJsonSent, true);
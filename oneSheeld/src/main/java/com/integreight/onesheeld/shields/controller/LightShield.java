@@ -1,43 +1,33 @@
 package com.integreight.onesheeld.shields.controller;
 
 import android.app.Activity;
-import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.os.Handler;
 
 import com.integreight.firmatabluetooth.ShieldFrame;
 import com.integreight.onesheeld.enums.UIShield;
 import com.integreight.onesheeld.shields.ControllerParent;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStream;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStreamHandler;
 import com.integreight.onesheeld.utils.Log;
 
-public class LightShield extends ControllerParent<LightShield> implements
-        SensorEventListener {
+public class LightShield extends ControllerParent<LightShield> {
     public static final byte LIGHT_VALUE = 0x01;
-    private SensorManager mSensorManager;
-    private Sensor mLight;
     private LightEventHandler eventHandler;
-    private ShieldFrame frame;
-    Handler handler;
-    int PERIOD = 100;
-    boolean flag = false;
-    boolean isHandlerLive = false;
-    float oldInput = 0;
-    boolean isFirstTime = true;
-
-    private final Runnable processSensors = new Runnable() {
-        @Override
-        public void run() {
-            // Do work with the sensor values.
-
-            flag = true;
-            // The Runnable is posted to run again here:
-            if (handler != null)
-                handler.postDelayed(this, PERIOD);
-        }
-    };
+    private final SensorStream sensorStream = new SensorStream(Sensor.TYPE_LIGHT,
+            UIShield.LIGHT_SHIELD.getId(), LIGHT_VALUE, 1, 3,
+            new SensorStreamHandler() {
+                @Override
+                public void onSensorFrame(ShieldFrame frame) {
+                    sendShieldFrame(frame);
+                }
+
+                @Override
+                public void onSensorValues(float[] values) {
+                    if (eventHandler != null)
+                        eventHandler.onSensorValueChangedFloat(values[0] + "");
+                }
+            });
 
     public LightShield() {
     }
@@ -56,9 +46,6 @@ public class LightShield extends ControllerParent<LightShield> implements
             com.integreight.onesheeld.shields.ControllerParent.SelectionAction selectionAction,
             boolean isToastable) {
         this.selectionAction = selectionAction;
-        mSensorManager = (SensorManager) getApplication().getSystemService(
-                Context.SENSOR_SERVICE);
-        mLight = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
         registerSensorListener(isToastable);
         return super.invalidate(selectionAction, isToastable);
     }
@@ -70,49 +57,18 @@ public class LightShield extends ControllerParent<LightShield> implements
 
     @Override
     public void onNewShieldFrameReceived(ShieldFrame frame) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // TODO Auto-generated method stub
-    }
-
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        if (flag && (oldInput != event.values[0] || isFirstTime)) {
-            Log.d("Sensor Data of X", event.values[0] + "");
-            if (eventHandler != null)
-                eventHandler.onSensorValueChangedFloat(event.values[0] + "");
-            isFirstTime = false;
-            frame = new ShieldFrame(UIShield.LIGHT_SHIELD.getId(), LIGHT_VALUE);
-            oldInput = event.values[0];
-            frame.addIntegerArgument(3, Math.round(event.values[0]));
-            sendShieldFrame(frame);
-            flag = false;
-        }
+        sensorStream.getOutputPolicy().onFrameReceived(frame);
     }
 
     // Register a listener for the sensor.
     public void registerSensorListener(boolean isToastable) {
-        // check on mSensorManager and sensor != null
-        if (mSensorManager == null | mLight == null) {
-            mSensorManager = (SensorManager) getApplication().getSystemService(
-                    Context.SENSOR_SERVICE);
-            mLight = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        }
-        if (mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT) != null
-                && mLight != null) {
+        SensorStreamEngine engine = SensorStreamEngine.getInstance();
+        if (engine.hasSensor(getApplication(), sensorStream)) {
             // Success! There's sensor.
-            if (!isHandlerLive) {
-                handler = new Handler();
-                mSensorManager.registerListener(this, mLight,
-                        SensorManager.SENSOR_DELAY_GAME);
-                handler.post(processSensors);
+            if (!sensorStream.isStarted()) {
+                engine.start(getApplication(), sensorStream);
                 if (eventHandler != null)
                     eventHandler.isDeviceHasSensor(true);
-                isHandlerLive = true;
                 if (selectionAction != null)
                     selectionAction.onSuccess();
             } else {
@@ -127,22 +83,12 @@ public class LightShield extends ControllerParent<LightShield> implements
                 activity.showToast("Device doesn't support this Sensor!");
             if (eventHandler != null)
                 eventHandler.isDeviceHasSensor(false);
-
         }
     }
 
     // Unregister a listener for the sensor .
     public void unegisterSensorListener() {
-        // mSensorManager.unregisterListener(this);
-        if (mSensorManager != null && handler != null && mLight != null) {
-
-            mSensorManager.unregisterListener(this, mLight);
-            mSensorManager.unregisterListener(this);
-            if (processSensors != null)
-                handler.removeCallbacks(processSensors);
-            handler.removeCallbacksAndMessages(null);
-            isHandlerLive = false;
-        }
+        SensorStreamEngine.getInstance().stop(sensorStream);
     }
 
     public static interface LightEventHandler {
@@ -157,9 +103,7 @@ public class LightShield extends ControllerParent<LightShield> implements
 
     @Override
     public void reset() {
-        // TODO Auto-generated method stub
         this.unegisterSensorListener();
-
     }
 
 }
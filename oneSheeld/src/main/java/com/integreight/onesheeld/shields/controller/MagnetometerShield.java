@@ -1,43 +1,33 @@
 package com.integreight.onesheeld.shields.controller;
 
 import android.app.Activity;
-import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.os.Handler;
 
 import com.integreight.firmatabluetooth.ShieldFrame;
 import com.integreight.onesheeld.enums.UIShield;
 import com.integreight.onesheeld.shields.ControllerParent;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStream;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStreamHandler;
 import com.integreight.onesheeld.utils.Log;
 
-public class MagnetometerShield extends ControllerParent<MagnetometerShield>
-        implements SensorEventListener {
+public class MagnetometerShield extends ControllerParent<MagnetometerShield> {
     public static final byte MAGNETOMETER_VALUE = 0x01;
-    private SensorManager mSensorManager;
-    private Sensor mMagnetometer;
     private MagnetometerEventHandler eventHandler;
-    private ShieldFrame frame;
-    Handler handler;
-    int PERIOD = 100;
-    boolean flag = false;
-    boolean isHandlerLive = false;
-    float oldInput_x = 0, oldInput_y = 0, oldInput_z = 0;
-    boolean isFirstTime = true;
-
-    private final Runnable processSensors = new Runnable() {
-        @Override
-        public void run() {
-            // Do work with the sensor values.
-
-            flag = true;
-            // The Runnable is posted to run again here:
-            if (handler != null)
-                handler.postDelayed(this, PERIOD);
-        }
-    };
+    private final SensorStream sensorStream = new SensorStream(Sensor.TYPE_MAGNETIC_FIELD,
+            UIShield.MAGNETOMETER_SHIELD.getId(), MAGNETOMETER_VALUE, 3, 0,
+            new SensorStreamHandler() {
+                @Override
+                public void onSensorFrame(ShieldFrame frame) {
+                    sendShieldFrame(frame);
+                }
+
+                @Override
+                public void onSensorValues(float[] values) {
+                    if (eventHandler != null)
+                        eventHandler.onSensorValueChangedFloat(values);
+                }
+            });
 
     public MagnetometerShield() {
     }
@@ -56,10 +46,6 @@ public class MagnetometerShield extends ControllerParent<MagnetometerShield>
             com.integreight.onesheeld.shields.ControllerParent.SelectionAction selectionAction,
             boolean isToastable) {
         this.selectionAction = selectionAction;
-        mSensorManager = (SensorManager) getApplication().getSystemService(
-                Context.SENSOR_SERVICE);
-        mMagnetometer = mSensorManager
-                .getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
         registerSensorListener(isToastable);
         return super.invalidate(selectionAction, isToastable);
     }
@@ -72,73 +58,18 @@ public class MagnetometerShield extends ControllerParent<MagnetometerShield>
 
     @Override
     public void onNewShieldFrameReceived(ShieldFrame frame) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        if (flag
-                && (oldInput_x != event.values[0]
-                || oldInput_y != event.values[1]
-                || oldInput_z != event.values[2] || isFirstTime)) {
-            // TODO Auto-generated method stub
-            frame = new ShieldFrame(UIShield.MAGNETOMETER_SHIELD.getId(),
-                    MAGNETOMETER_VALUE);
-            isFirstTime = false;
-            oldInput_x = event.values[0];
-            oldInput_y = event.values[1];
-            oldInput_z = event.values[2];
-            // frame.addByteArgument((byte) Math.round(event.values[0]));
-            frame.addFloatArgument(event.values[0]);
-            frame.addFloatArgument(event.values[1]);
-            frame.addFloatArgument(event.values[2]);
-            sendShieldFrame(frame);
-            if (eventHandler != null)
-                eventHandler.onSensorValueChangedFloat(event.values);
-
-            Log.d("Sensor Data of X", event.values[0] + "");
-            Log.d("Sensor Data of Y", event.values[1] + "");
-            Log.d("Sensor Data of Z", event.values[2] + "");
-
-            // calculate magnetic field value
-            float magnetic_field = (float) Math
-                    .sqrt((event.values[0] * event.values[0])
-                            + (event.values[1] * event.values[1])
-                            + (event.values[2] * event.values[2]));
-            Log.d("Magnetic field value = ", magnetic_field + "");
-
-            //
-            flag = false;
-        }
-
+        sensorStream.getOutputPolicy().onFrameReceived(frame);
     }
 
     // Register a listener for the sensor.
     public void registerSensorListener(boolean isToastable) {
-        // check on mSensorManager and sensor != null
-        if (mSensorManager == null | mMagnetometer == null) {
-            mSensorManager = (SensorManager) getApplication().getSystemService(
-                    Context.SENSOR_SERVICE);
-            mMagnetometer = mSensorManager
-                    .getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        }
-        if (mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD) != null) {
+        SensorStreamEngine engine = SensorStreamEngine.getInstance();
+        if (engine.hasSensor(getApplication(), sensorStream)) {
             // Success! There's sensor.
-            if (!isHandlerLive) {
-                handler = new Handler();
-                mSensorManager.registerListener(this, mMagnetometer,
-                        SensorManager.SENSOR_DELAY_GAME);
-                handler.post(processSensors);
+            if (!sensorStream.isStarted()) {
+                engine.start(getApplication(), sensorStream);
                 if (eventHandler != null)
                     eventHandler.isDeviceHasSensor(true);
-                isHandlerLive = true;
                 if (selectionAction != null)
                     selectionAction.onSuccess();
             } else {
@@ -153,22 +84,12 @@ public class MagnetometerShield extends ControllerParent<MagnetometerShield>
                 activity.showToast("Device doesn't support this Sensor!");
             if (eventHandler != null)
                 eventHandler.isDeviceHasSensor(false);
-
         }
     }
 
     // Unregister a listener for the sensor .
     public void unegisterSensorListener() {
-        // mSensorManager.unregisterListener(this);
-        if (mSensorManager != null && handler != null && mMagnetometer != null) {
-
-            mSensorManager.unregisterListener(this, mMagnetometer);
-            mSensorManager.unregisterListener(this);
-            if (processSensors != null)
-                handler.removeCallbacks(processSensors);
-            handler.removeCallbacksAndMessages(null);
-            isHandlerLive = false;
-        }
+        SensorStreamEngine.getInstance().stop(sensorStream);
     }
 
     public static interface MagnetometerEventHandler {
@@ -178,9 +99,9 @@ public class MagnetometerShield extends ControllerParent<MagnetometerShield>
         void isDeviceHasSensor(Boolean hasSensor);
 
     }
+
     @Override
     public void reset() {
-        // TODO Auto-generated method stub
         this.unegisterSensorListener();
     }
 
@@ -108,7 +108,7 @@ public class NfcShield extends ControllerParent<NfcShield> {
     @Override
     public void onNewShieldFrameReceived(ShieldFrame frame) {
         if (frame.getShieldId() == SHIELD_ID) {
-            if (frame.getArguments() != null && frame.getArguments().size() > 0) {
+            if (frame.getArgumentsCount() > 0) {
                 int record, start, size;
                 DataReply data;
                 ShieldFrame sf;
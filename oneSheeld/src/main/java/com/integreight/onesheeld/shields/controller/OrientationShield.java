@@ -1,43 +1,35 @@
 package com.integreight.onesheeld.shields.controller;
 
 import android.app.Activity;
-import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.os.Handler;
 
 import com.integreight.firmatabluetooth.ShieldFrame;
 import com.integreight.onesheeld.enums.UIShield;
 import com.integreight.onesheeld.shields.ControllerParent;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStream;
+import com.integreight.onesheeld.shields.controller.utils.SensorStreamEngine.SensorStreamHandler;
 import com.integreight.onesheeld.utils.Log;
 
-public class OrientationShield extends ControllerParent<OrientationShield>
-        implements SensorEventListener {
+public class OrientationShield extends ControllerParent<OrientationShield> {
     public static final byte ORIENTATION_VALUE = 0x01;
-    private SensorManager mSensorManager;
-    private Sensor mOrientation;
+    @SuppressWarnings("deprecation")
+    private static final int ORIENTATION_SENSOR = Sensor.TYPE_ORIENTATION;
     private OrientationEventHandler eventHandler;
-    private ShieldFrame frame;
-    Handler handler;
-    int PERIOD = 100;
-    boolean flag = false;
-    boolean isHandlerLive = false;
-    float oldInput_x = 0, oldInput_y = 0, oldInput_z = 0;
-    boolean isFirstTime = true;
-
-    private final Runnable processSensors = new Runnable() {
-        @Override
-        public void run() {
-            // Do work with the sensor values.
-
-            flag = true;
-            // The Runnable is posted to run again here:
-            if (handler != null)
-                handler.postDelayed(this, PERIOD);
-        }
-    };
+    private final SensorStream sensorStream = new SensorStream(ORIENTATION_SENSOR,
+            UIShield.ORIENTATION_SHIELD.getId(), ORIENTATION_VALUE, 3, 0,
+            new SensorStreamHandler() {
+                @Override
+                public void onSensorFrame(ShieldFrame frame) {
+                    sendShieldFrame(frame);
+                }
+
+                @Override
+                public void onSensorValues(float[] values) {
+                    if (eventHandler != null)
+                        eventHandler.onSensorValueChangedFloat(values);
+                }
+            });
 
     public OrientationShield() {
     }
@@ -51,15 +43,11 @@ public class OrientationShield extends ControllerParent<OrientationShield>
         return super.init(tag);
     }
 
-    @SuppressWarnings("deprecation")
     @Override
     public ControllerParent<OrientationShield> invalidate(
             com.integreight.onesheeld.shields.ControllerParent.SelectionAction selectionAction,
             boolean isToastable) {
         this.selectionAction = selectionAction;
-        mSensorManager = (SensorManager) getApplication().getSystemService(
-                Context.SENSOR_SERVICE);
-        mOrientation = mSensorManager.getDefaultSensor(Sensor.TYPE_ORIENTATION);
         registerSensorListener(isToastable);
         return super.invalidate(selectionAction, isToastable);
     }
@@ -71,67 +59,18 @@ public class OrientationShield extends ControllerParent<OrientationShield>
 
     @Override
     public void onNewShieldFrameReceived(ShieldFrame frame) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // TODO Auto-generated method stub
-
-    }
-
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        if (flag
-                && (oldInput_x != event.values[0]
-                || oldInput_y != event.values[1]
-                || oldInput_z != event.values[2] || isFirstTime)) {
-            // TODO Auto-generated method stub
-            frame = new ShieldFrame(UIShield.ORIENTATION_SHIELD.getId(),
-                    ORIENTATION_VALUE);
-            oldInput_x = event.values[0];
-            oldInput_y = event.values[1];
-            oldInput_z = event.values[2];
-            // frame.addByteArgument((byte) Math.round(event.values[0]));
-            frame.addFloatArgument(event.values[0]);
-            frame.addFloatArgument(event.values[1]);
-            frame.addFloatArgument(event.values[2]);
-            sendShieldFrame(frame);
-            if (eventHandler != null)
-                eventHandler.onSensorValueChangedFloat(event.values);
-
-            Log.d("Sensor Data of X", event.values[0] + "");
-            Log.d("Sensor Data of Y", event.values[1] + "");
-            Log.d("Sensor Data of Z", event.values[2] + "");
-
-            //
-            flag = false;
-        }
-
+        sensorStream.getOutputPolicy().onFrameReceived(frame);
     }
 
     // Register a listener for the sensor.
-    @SuppressWarnings("deprecation")
     public void registerSensorListener(boolean isToastable) {
-        // check on mSensorManager and sensor != null
-        if (mSensorManager == null | mOrientation == null) {
-            mSensorManager = (SensorManager) getApplication().getSystemService(
-                    Context.SENSOR_SERVICE);
-            mOrientation = mSensorManager
-                    .getDefaultSensor(Sensor.TYPE_ORIENTATION);
-        }
-        if (mSensorManager.getDefaultSensor(Sensor.TYPE_ORIENTATION) != null) {
+        SensorStreamEngine engine = SensorStreamEngine.getInstance();
+        if (engine.hasSensor(getApplication(), sensorStream)) {
             // Success! There's sensor.
-            if (!isHandlerLive) {
-                handler = new Handler();
-                if (mOrientation != null)
-                    mSensorManager.registerListener(this, mOrientation,
-                            SensorManager.SENSOR_DELAY_GAME);
-                handler.post(processSensors);
+            if (!sensorStream.isStarted()) {
+                engine.start(getApplication(), sensorStream);
                 if (eventHandler != null)
                     eventHandler.isDeviceHasSensor(true);
-                isHandlerLive = true;
                 if (selectionAction != null)
                     selectionAction.onSuccess();
             } else {
@@ -146,21 +85,12 @@ public class OrientationShield extends ControllerParent<OrientationShield>
                 activity.showToast("Device doesn't support this Sensor!");
             if (eventHandler != null)
                 eventHandler.isDeviceHasSensor(false);
-
         }
     }
 
     // Unregister a listener for the sensor .
     public void unegisterSensorListener() {
-        // mSensorManager.unregisterListener(this);
-        if (mSensorManager != null && handler != null && mOrientation != null) {
-
-            mSensorManager.unregisterListener(this, mOrientation);
-            mSensorManager.unregisterListener(this);
-            handler.removeCallbacks(processSensors);
-            handler.removeCallbacksAndMessages(null);
-            isHandlerLive = false;
-        }
+        SensorStreamEngine.getInstance().stop(sensorStream);
     }
 
     public static interface OrientationEventHandler {
@@ -170,11 +100,10 @@ public class OrientationShield extends ControllerParent<OrientationShield>
         void isDeviceHasSensor(Boolean hasSensor);
 
     }
+
     @Override
     public void reset() {
-        // TODO Auto-generated method stub
         this.unegisterSensorListener();
-
     }
 
 }
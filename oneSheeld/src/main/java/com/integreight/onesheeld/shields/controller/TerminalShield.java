@@ -66,7 +66,7 @@ public class TerminalShield extends ControllerParent<TerminalShield> {
     public void onNewShieldFrameReceived(ShieldFrame frame) {
         if (frame.getShieldId() == UIShield.TERMINAL_SHIELD.getId()) {
             String outputTxt = null;
-            if (frame.getArguments() != null && frame.getArguments().size() > 0)
+            if (frame.getArgumentsCount() > 0)
                 outputTxt = frame.getArgumentAsString(0);
             if (outputTxt != null) {
                 String date = terminalPrintedLines.size() == 0
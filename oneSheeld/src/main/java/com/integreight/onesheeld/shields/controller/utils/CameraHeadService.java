@@ -5,13 +5,9 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.PixelFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.hardware.SensorManager;
 import android.media.MediaScannerConnection;
@@ -85,28 +81,26 @@ public class CameraHeadService extends Service implements
     private boolean takenSuccessfully = false;
     public static final int GET_RESULT = 1, CAPTURE_IMAGE = 3, CRASHED = 13, SET_CAMERA_PREVIEW_TYPE = 15;
     private static Handler queue = new Handler();
-    private byte[] data;
-    ByteArrayOutputStream out;
+    private static final int PREVIEW_BUFFERS_COUNT = 3;
+    private PreviewFrameWorker previewWorker;
+    private volatile Camera previewCamera;
+    private volatile Object previewBuffersOwner;
     Camera.Parameters parameters;
     Camera.Size size;
-    YuvImage yuv;
-    byte[] bytes;
-    Bitmap bitmap;
-    Bitmap resizebitmap;
     Handler handler = new Handler();
-    private Messenger colorDetectionMessenger;
+    private volatile Messenger colorDetectionMessenger;
     private Messenger cameraMessenger;
     int[] previewCells;
     int[] lastPreviewCells;
-    int currentColorIndex = 0;
-    private final int quality = 50;
-    int w = 0;
-    int h = 0;
-    int x = 0;
-    int y = 0;
-    private int cellSize = 1;
-    private ColorDetectionShield.RECEIVED_FRAMES recevedFrameOperation = ColorDetectionShield.RECEIVED_FRAMES.CENTER;
-    private ColorDetectionShield.COLOR_TYPE colorType = ColorDetectionShield.COLOR_TYPE.COMMON;
+    private static final float COLOR_CHANGE_THRESHOLD = 2.3f;
+    private final float[] previewLab = new float[3];
+    private final float[] lastPreviewLab = new float[3];
+    private final ColorGridAnalyzer gridAnalyzer = new ColorGridAnalyzer();
+    // Rows then columns, replaced as a whole so a frame never sees half a resize
+    private volatile int[] gridSize = {3, 3};
+    private volatile int cellSize = 1;
+    private volatile ColorDetectionShield.RECEIVED_FRAMES recevedFrameOperation = ColorDetectionShield.RECEIVED_FRAMES.CENTER;
+    private volatile ColorDetectionShield.COLOR_TYPE colorType = ColorDetectionShield.COLOR_TYPE.COMMON;
     private boolean isBackPreview = true;
     private boolean isCapturing = false;
     public final static int SHOW_PREVIEW = 7;
@@ -146,7 +140,7 @@ public class CameraHeadService extends Service implements
         }
         cam.setDisplayOrientation(90);
         if (registeredShieldsIDs.contains(UIShield.COLOR_DETECTION_SHIELD.name()))
-            cam.setPreviewCallback(previewCallback);
+            setPreviewCallbackWithBuffers(cam);
         return cam;
     }
 
@@ -300,7 +294,7 @@ public class CameraHeadService extends Service implements
                         mCamera.setParameters(parameters);
                         mCamera.startPreview();
                         if (registeredShieldsIDs.contains(UIShield.COLOR_DETECTION_SHIELD.name()))
-                            mCamera.setPreviewCallback(previewCallback);
+                            setPreviewCallbackWithBuffers(mCamera);
                         mCamera.takePicture(null, null, mCall);
 
                         // return 4;
@@ -363,7 +357,7 @@ public class CameraHeadService extends Service implements
                             mCamera.setParameters(parameters);
                             mCamera.startPreview();
                             if (registeredShieldsIDs.contains(UIShield.COLOR_DETECTION_SHIELD.name()))
-                                mCamera.setPreviewCallback(previewCallback);
+                                setPreviewCallbackWithBuffers(mCamera);
                             mCamera.takePicture(null, null, mCall);
                             // return 4;
 
@@ -402,7 +396,7 @@ public class CameraHeadService extends Service implements
                     if (mCamera != null) {
                         mCamera.setDisplayOrientation(90);
                         if (registeredShieldsIDs.contains(UIShield.COLOR_DETECTION_SHIELD.name()))
-                            mCamera.setPreviewCallback(previewCallback);
+                            setPreviewCallbackWithBuffers(mCamera);
                         mCamera.setPreviewDisplay(sv.getHolder());
                         notifyPreviewTypeChanged(true, true);
                         parameters = mCamera.getParameters();
@@ -489,7 +483,7 @@ public class CameraHeadService extends Service implements
         }
         size = parameters.getPreviewSize();
         if (registeredShieldsIDs.contains(UIShield.COLOR_DETECTION_SHIELD.name()))
-            mCamera.setPreviewCallback(previewCallback);
+            setPreviewCallbackWithBuffers(mCamera);
         windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
 
         params = new WindowManager.LayoutParams(
@@ -784,6 +778,8 @@ public class CameraHeadService extends Service implements
                 colorType = ColorDetectionShield.COLOR_TYPE.getEnum(msg.getData().getInt("type"));
             } else if (msg.what == ColorDetectionShield.SET_COLOR_PATCH_SIZE) {
                 cellSize = msg.getData().getInt("size");
+            } else if (msg.what == ColorDetectionShield.SET_COLOR_GRID_SIZE) {
+                gridSize = new int[]{msg.getData().getInt("rows"), msg.getData().getInt("columns")};
             } else if (msg.what == ColorDetectionShield.UNBIND_COLOR_DETECTOR) {
                 unBindColorDetector();
             } else if (msg.what == CameraShield.UNBIND_CAMERA_CAPTURE) {
@@ -825,7 +821,7 @@ public class CameraHeadService extends Service implements
                             if (mCamera != null) {
                                 mCamera.setDisplayOrientation(90);
                                 if (registeredShieldsIDs.contains(UIShield.COLOR_DETECTION_SHIELD.name()))
-                                    mCamera.setPreviewCallback(previewCallback);
+                                    setPreviewCallbackWithBuffers(mCamera);
                                 mCamera.setPreviewDisplay(sv.getHolder());
                                 try {
                                     mCamera.startPreview();
@@ -893,6 +889,11 @@ public class CameraHeadService extends Service implements
             Log.d("Xcamera", registeredShieldsIDs.size() + "  " + registeredShieldsIDs.toString());
             colorDetectionMessenger = null;
         }
+        if (previewWorker != null)
+            Log.d("PreviewFrameWorker", "analysed: " + previewWorker.getFramesAnalysed()
+                    + " dropped: " + previewWorker.getFramesDropped()
+                    + " average: " + previewWorker.getAverageAnalysisMicros() + "us"
+                    + " max: " + previewWorker.getMaxAnalysisMicros() + "us");
     }
 
     public void unBindCameraCapture() {
@@ -940,7 +941,7 @@ public class CameraHeadService extends Service implements
                     e.printStackTrace();
                 }
                 if (registeredShieldsIDs.contains(UIShield.COLOR_DETECTION_SHIELD.name()))
-                    mCamera.setPreviewCallback(previewCallback);
+                    setPreviewCallbackWithBuffers(mCamera);
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -959,6 +960,8 @@ public class CameraHeadService extends Service implements
 
     @Override
     public void onDestroy() {
+        if (previewWorker != null)
+            previewWorker.stopWorking();
         if (mCamera != null) {
             if (queue != null)
                 queue.removeCallbacks(null);
@@ -1012,8 +1015,13 @@ public class CameraHeadService extends Service implements
         if (previewCells == null || lastPreviewCells == null)
             return false;
         if (previewCells.length == lastPreviewCells.length) {
+            // Compared with the last colours sent, so slow drifts still get through
             for (int i = 0; i < previewCells.length; i++) {
-                if (previewCells[i] != lastPreviewCells[i])
+                if (previewCells[i] == lastPreviewCells[i])
+                    continue;
+                ImageUtils.rgbToLab(previewCells[i], previewLab);
+                ImageUtils.rgbToLab(lastPreviewCells[i], lastPreviewLab);
+                if (ImageUtils.getLabDistance(previewLab, lastPreviewLab) >= COLOR_CHANGE_THRESHOLD)
                     return false;
             }
             return true;
@@ -1021,88 +1029,76 @@ public class CameraHeadService extends Service implements
             return false;
     }
 
+    private void setPreviewCallbackWithBuffers(Camera camera) {
+        Camera.Parameters cameraParameters = camera.getParameters();
+        size = cameraParameters.getPreviewSize();
+        int bufferSize = size.width * size.height
+                * ImageFormat.getBitsPerPixel(cameraParameters.getPreviewFormat()) / 8;
+        // Buffers still held by the worker belong to the old owner and are dropped when released
+        previewBuffersOwner = new Object();
+        previewCamera = camera;
+        camera.setPreviewCallbackWithBuffer(previewCallback);
+        for (int i = 0; i < PREVIEW_BUFFERS_COUNT; i++)
+            camera.addCallbackBuffer(new byte[bufferSize]);
+        if (previewWorker == null) {
+            previewWorker = new PreviewFrameWorker(previewFrameHandler);
+            previewWorker.start();
+        }
+    }
+
     private final Camera.PreviewCallback previewCallback = new Camera.PreviewCallback() {
         @Override
-        public void onPreviewFrame(byte[] data1, final Camera camera) {
-            if (colorDetectionMessenger != null) {
-                queue.removeCallbacks(null);
-                data = data1;
-                queue.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (data != null && camera != null) {
-                            try {
-                                Log.e("", "onPreviewFrame pass");
-                                out = new ByteArrayOutputStream();
-                                parameters = camera.getParameters();
-                                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH && parameters.getSupportedFocusModes().contains(
-                                        Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
-                                    parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-                                }
-                                size = parameters.getPreviewSize();
-                                yuv = new YuvImage(data, ImageFormat.NV21, size.width,
-                                        size.height, null);
-
-                                // bWidth and bHeight define the size of the bitmap you wish the
-                                // fill with the preview image
-                                yuv.compressToJpeg(new Rect(0, 0, size.width, size.height),
-                                        quality, out);
-                                bytes = out.toByteArray();
-                                bitmap = BitmapFactory.decodeByteArray(bytes, 0,
-                                        bytes.length);
-                                if (recevedFrameOperation == ColorDetectionShield.RECEIVED_FRAMES.CENTER) {
-                                    previewCells = new int[1];
-                                    currentColorIndex = 0;
-                                    addColorCell(1, 1);
-                                } else {
-                                    currentColorIndex = 0;
-                                    previewCells = new int[9];
-                                    for (int i = 0; i < 3; i++)
-                                        for (int j = 0; j < 3; j++) {
-                                            addColorCell(i, j);
-                                            currentColorIndex += 1;
-                                        }
-                                }
-                                if (colorDetectionMessenger != null && !isEqualColors()) {
-                                    Bundle b = new Bundle();
-                                    b.putIntArray("detected", previewCells);
-                                    Message msg = Message.obtain(null, GET_RESULT);
-                                    msg.setData(b);
-                                    colorDetectionMessenger.send(msg);
-                                    lastPreviewCells = previewCells;
-                                }
-                            } catch (Exception e) {
-                                CrashlyticsUtils.logException(e);
-                            }
-                        }
-                    }
-                });
-            }
+        public void onPreviewFrame(byte[] frame, Camera camera) {
+            if (frame == null)
+                return;
+            if (colorDetectionMessenger != null && previewWorker != null && size != null)
+                previewWorker.offer(frame, previewBuffersOwner, size.width, size.height);
+            else
+                previewFrameHandler.onReleaseBuffer(frame, previewBuffersOwner);
         }
     };
-//    int vv = 0;
 
-    private void addColorCell(int i, int j) {
-        if (bitmap != null) {
-            w = (bitmap.getWidth() / 3) / cellSize;
-            h = (bitmap.getHeight() / 3) / cellSize;
-            x = ((bitmap.getWidth() / 2) - (w / 2)) * i;
-            y = ((bitmap.getHeight() / 2) - (h / 2)) * (2 - j);
-            if (bitmap.getWidth() - x < w) w = bitmap.getWidth() - x;
-            if (bitmap.getHeight() - y < h) h = bitmap.getHeight() - y;
-            resizebitmap = Bitmap.createBitmap(bitmap, x, y, w, h, null, false);
-            if (colorType == ColorDetectionShield.COLOR_TYPE.COMMON) {
-                resizebitmap = Bitmap.createScaledBitmap(resizebitmap, 1, 1, true);
-                int dominant = resizebitmap.getPixel(0, 0);
-                int dominantColor = Color.rgb(Color.red(dominant), Color.green(dominant)
-                        , Color.blue(dominant));
-                previewCells[currentColorIndex] = dominantColor;
-            } else {
-                int average = ImageUtils.getAverageColor(resizebitmap);
-                int averageColor = Color.rgb(Color.red(average), Color.green(average)
-                        , Color.blue(average));
-                previewCells[currentColorIndex] = averageColor;
+    private final PreviewFrameWorker.PreviewFrameHandler previewFrameHandler = new PreviewFrameWorker.PreviewFrameHandler() {
+        @Override
+        public void onAnalyseFrame(byte[] frame, int width, int height) {
+            if (colorDetectionMessenger == null || frame.length < width * height * 3 / 2)
+                return;
+            try {
+                boolean average = colorType == ColorDetectionShield.COLOR_TYPE.AVERAGE;
+                int[] grid = gridSize;
+                if (recevedFrameOperation == ColorDetectionShield.RECEIVED_FRAMES.CENTER)
+                    previewCells = new int[]{gridAnalyzer.analyseCenter(frame, width, height,
+                            cellSize, average)};
+                else
+                    previewCells = gridAnalyzer.analyse(frame, width, height, grid[0],
+                            grid[1], cellSize, average);
+                Messenger messenger = colorDetectionMessenger;
+                if (messenger != null && !isEqualColors()) {
+                    Bundle b = new Bundle();
+                    b.putIntArray("detected", previewCells);
+                    b.putInt("rows", grid[0]);
+                    b.putInt("columns", grid[1]);
+                    Message msg = Message.obtain(null, GET_RESULT);
+                    msg.setData(b);
+                    messenger.send(msg);
+                    lastPreviewCells = previewCells;
+                }
+            } catch (Exception e) {
+                CrashlyticsUtils.logException(e);
             }
         }
-    }
+
+        @Override
+        public void onReleaseBuffer(byte[] buffer, Object owner) {
+            Camera camera = previewCamera;
+            if (camera == null || owner != previewBuffersOwner)
+                return;
+            try {
+                camera.addCallbackBuffer(buffer);
+            } catch (RuntimeException e) {
+                // the camera was released while the frame was analysed
+            }
+        }
+    };
+//    int vv = 0;
 }
@@ -0,0 +1,46 @@
+package com.integreight.onesheeld.shields.controller.utils;
+
+/**
+ * Finds the colour of each cell of a grid laid over NV21 preview frames.
+ * Cells never overlap, so summing each one straight from the frame reads
+ * every pixel at most once, less than building integral images would.
+ */
+public class ColorGridAnalyzer {
+    public static final int MAX_GRID_SIZE = 8;
+
+    /**
+     * Cells are ordered row by row, rows running along the frame width and
+     * columns against its height, the way the 3x3 grid was always sent.
+     *
+     * @param cellDivider shrinks every cell around its position, 1 covers the whole grid
+     */
+    public int[] analyse(byte[] nv21, int width, int height, int rows, int columns,
+                         int cellDivider, boolean average) {
+        int[] cells = new int[rows * columns];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                cells[i * columns + j] = getCellColor(nv21, width, height, rows, columns,
+                        cellDivider, i, j, average);
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * The center cell of a 3x3 grid.
+     */
+    public int analyseCenter(byte[] nv21, int width, int height, int cellDivider, boolean average) {
+        return getCellColor(nv21, width, height, 3, 3, cellDivider, 1, 1, average);
+    }
+
+    private int getCellColor(byte[] nv21, int width, int height, int rows, int columns,
+                             int cellDivider, int i, int j, boolean average) {
+        int w = Math.max(1, (width / rows) / cellDivider);
+        int h = Math.max(1, (height / columns) / cellDivider);
+        int x = rows > 1 ? (width - w) * i / (rows - 1) : (width - w) / 2;
+        int y = columns > 1 ? (height - h) * (columns - 1 - j) / (columns - 1) : (height - h) / 2;
+        if (average)
+            return ImageUtils.getNv21AverageColor(nv21, width, height, x, y, w, h);
+        return ImageUtils.getNv21DominantColor(nv21, width, height, x, y, w, h);
+    }
+}
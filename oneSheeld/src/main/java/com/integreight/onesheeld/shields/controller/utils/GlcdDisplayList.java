@@ -0,0 +1,122 @@
+package com.integreight.onesheeld.shields.controller.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The GLCD's drawing commands as one int stream: an opcode, a color and
+ * the opcode's operands, coordinates being stored as float bits and text
+ * as an index into a side table. A list isn't changed once it's recorded,
+ * so it can be replayed by the renderer from any thread, compared with the
+ * next one and kept to redraw the display at once.
+ */
+public class GlcdDisplayList {
+    public static final int OP_CLEAR = 0;
+    public static final int OP_POINT = 1;
+    public static final int OP_LINE = 2;
+    public static final int OP_RECTANGLE = 3;
+    public static final int OP_FILL_RECTANGLE = 4;
+    public static final int OP_ROUND_RECTANGLE = 5;
+    public static final int OP_FILL_ROUND_RECTANGLE = 6;
+    public static final int OP_SHADOW_ROUND_RECTANGLE = 7;
+    public static final int OP_CIRCLE = 8;
+    public static final int OP_FILL_CIRCLE = 9;
+    public static final int OP_ELLIPSE = 10;
+    public static final int OP_FILL_ELLIPSE = 11;
+    public static final int OP_STRING = 12;
+
+    // Operands after the opcode and the color
+    private static final int[] OPERANDS_COUNT = {0, 2, 4, 4, 4, 5, 5, 5, 3, 3, 4, 4, 5};
+
+    private int[] commands = new int[256];
+    private int size = 0;
+    private final ArrayList<String> texts = new ArrayList<>();
+
+    public static int getOperandsCount(int op) {
+        return OPERANDS_COUNT[op];
+    }
+
+    public int[] getCommands() {
+        return commands;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getText(int index) {
+        return texts.get(index);
+    }
+
+    void add(int op, int color) {
+        ensureCapacity(2);
+        commands[size++] = op;
+        commands[size++] = color;
+    }
+
+    void add(int op, int color, float a, float b) {
+        add(op, color);
+        ensureCapacity(2);
+        commands[size++] = Float.floatToIntBits(a);
+        commands[size++] = Float.floatToIntBits(b);
+    }
+
+    void add(int op, int color, float a, float b, float c) {
+        add(op, color, a, b);
+        ensureCapacity(1);
+        commands[size++] = Float.floatToIntBits(c);
+    }
+
+    void add(int op, int color, float a, float b, float c, float d) {
+        add(op, color, a, b, c);
+        ensureCapacity(1);
+        commands[size++] = Float.floatToIntBits(d);
+    }
+
+    void add(int op, int color, float a, float b, float c, float d, float e) {
+        add(op, color, a, b, c, d);
+        ensureCapacity(1);
+        commands[size++] = Float.floatToIntBits(e);
+    }
+
+    void addString(String text, float x, float y, int textSize, int textFont, int color) {
+        add(OP_STRING, color);
+        ensureCapacity(5);
+        commands[size++] = texts.size();
+        commands[size++] = Float.floatToIntBits(x);
+        commands[size++] = Float.floatToIntBits(y);
+        commands[size++] = textSize;
+        commands[size++] = textFont;
+        texts.add(text);
+    }
+
+    private void ensureCapacity(int count) {
+        if (size + count > commands.length)
+            commands = Arrays.copyOf(commands, Math.max(commands.length * 2, size + count));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof GlcdDisplayList))
+            return false;
+        GlcdDisplayList other = (GlcdDisplayList) o;
+        if (size != other.size || !texts.equals(other.texts))
+            return false;
+        for (int i = 0; i < size; i++) {
+            if (commands[i] != other.commands[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = texts.hashCode();
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + commands[i];
+        }
+        return hash;
+    }
+}
@@ -1,9 +1,12 @@
 package com.integreight.onesheeld.shields.controller.utils;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.support.v4.view.ViewCompat;
 import android.util.SparseArray;
 import android.view.MotionEvent;
 import android.view.View;
@@ -13,8 +16,7 @@ import com.integreight.onesheeld.OneSheeldApplication;
 import com.integreight.onesheeld.shields.controller.GlcdShield;
 import com.integreight.onesheeld.shields.controller.utils.glcd.Shape;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by Moustafa Nasr on 6/7/2015.
@@ -22,7 +24,6 @@ import java.util.List;
 public class GlcdView extends View implements OnTouchListener {
 
     Context context;
-    private Canvas canvas;
     int background = 0;
     Paint paint;
     int glcdWidth = 256, glcdHeight = 128;
@@ -30,6 +31,17 @@ public class GlcdView extends View implements OnTouchListener {
     public String controllerTag = "";
 
     private boolean isInitialized = false;
+    private volatile boolean isRedrawScheduled = false;
+    private volatile boolean isContentDirty = true;
+    private GlcdShield controller;
+    private GlcdDisplayList recording;
+    private GlcdDisplayList renderedDisplayList;
+
+    // The display at its native resolution, shapes are rasterised here only when they change
+    private final int[] frameBuffer;
+    private final Bitmap frameBitmap;
+    private final Matrix frameMatrix = new Matrix();
+    private final Paint framePaint = new Paint();
 
 
      /*
@@ -58,16 +70,40 @@ public class GlcdView extends View implements OnTouchListener {
         this.glcdHeight = glcdHeight;
         paint = new Paint();
         background = GlcdShield.WHITE;
+        frameBuffer = new int[glcdWidth * glcdHeight];
+        frameBitmap = Bitmap.createBitmap(glcdWidth, glcdHeight, Bitmap.Config.ARGB_8888);
+        framePaint.setFilterBitmap(false);
+    }
+
+    /**
+     * Schedules a redraw, the shapes are recorded and rasterised once on the
+     * next vsync however many times this is called before. Safe to call from
+     * any thread.
+     */
+    public void requestRedraw() {
+        if (!isRedrawScheduled) {
+            isRedrawScheduled = true;
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    private GlcdShield getController() {
+        if (controller == null)
+            controller = (GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag);
+        return controller;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        controller = null;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        this.canvas = canvas;
-        //   draw Background
-        paint.setColor(background);
-        canvas.drawRect(originY, originX, originY + height, originX + width, paint);
-
+        isRedrawScheduled = false;
+        GlcdShield controller = getController();
 
         if (isInitialized == false) {
             isInitialized = true;
@@ -80,6 +116,8 @@ public class GlcdView extends View implements OnTouchListener {
             originX = (canvas.getHeight() - width) / 2;
             pixelX = height / glcdHeight;
             pixelY = width / glcdWidth;
+            // GLCD x runs down the screen and y runs right to left
+            frameMatrix.setValues(new float[]{0, -pixelY, originY + height, pixelX, 0, originX, 0, 0, 1});
 
 
             //------------------------------------
@@ -93,26 +131,156 @@ public class GlcdView extends View implements OnTouchListener {
             //------------------------------------------
             //------------------------------------
 
-            if (((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag) != null) {
-                ((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).initializeGLcd();
-            }
+            if (controller != null)
+                controller.initializeGLcd();
 
             paint = new Paint();
             setOnTouchListener(this);
         }
 
-        if (((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag) != null) {
-            final SparseArray<Shape> tempShapes = ((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).shapes;
-            for (int shapesCount = 0; shapesCount < tempShapes.size(); shapesCount++) {
-                tempShapes.valueAt(shapesCount).draw(this);
-            }
+        GlcdDisplayList displayList = controller != null ? controller.getDisplayList(this) : null;
+        if (isContentDirty || displayList != renderedDisplayList) {
+            isContentDirty = false;
+            renderedDisplayList = displayList;
+            if (displayList != null)
+                replay(displayList);
+            else
+                Arrays.fill(frameBuffer, background);
+            frameBitmap.setPixels(frameBuffer, 0, glcdWidth, 0, 0, glcdWidth, glcdHeight);
         }
+        canvas.drawBitmap(frameBitmap, frameMatrix, framePaint);
 
         paint.setColor(Color.parseColor("#393939"));
         canvas.drawRect(0, 0, originY, originX + width, paint);
         canvas.drawRect(originY + height, originX, canvas.getWidth(), canvas.getHeight(), paint);
+    }
+
+    /**
+     * Records what the shapes draw into a new display list, nothing is
+     * rasterised until the list is replayed.
+     */
+    public synchronized GlcdDisplayList record(SparseArray<Shape> shapes) {
+        recording = new GlcdDisplayList();
+        recording.add(GlcdDisplayList.OP_CLEAR, background);
+        for (int shapesCount = 0; shapesCount < shapes.size(); shapesCount++) {
+            shapes.valueAt(shapesCount).draw(this);
+        }
+        GlcdDisplayList displayList = recording;
+        recording = null;
+        return displayList;
+    }
+
+    private void replay(GlcdDisplayList displayList) {
+        int[] commands = displayList.getCommands();
+        int size = displayList.size();
+        for (int i = 0; i < size; i += 2 + GlcdDisplayList.getOperandsCount(commands[i])) {
+            int color = commands[i + 1];
+            switch (commands[i]) {
+                case GlcdDisplayList.OP_CLEAR:
+                    Arrays.fill(frameBuffer, color);
+                    break;
+                case GlcdDisplayList.OP_POINT:
+                    rasterPoint((int) operand(commands, i, 0), (int) operand(commands, i, 1), color);
+                    break;
+                case GlcdDisplayList.OP_LINE:
+                    rasterLine(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), color);
+                    break;
+                case GlcdDisplayList.OP_RECTANGLE:
+                    rasterRectangle(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), color);
+                    break;
+                case GlcdDisplayList.OP_FILL_RECTANGLE:
+                    rasterFillRectangle(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), color);
+                    break;
+                case GlcdDisplayList.OP_ROUND_RECTANGLE:
+                    rasterRoundRectangle(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), operand(commands, i, 4), color);
+                    break;
+                case GlcdDisplayList.OP_FILL_ROUND_RECTANGLE:
+                    rasterFillRoundRectangle(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), operand(commands, i, 4), color);
+                    break;
+                case GlcdDisplayList.OP_SHADOW_ROUND_RECTANGLE:
+                    rasterShadowRoundRectangle(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), operand(commands, i, 4), color);
+                    break;
+                case GlcdDisplayList.OP_CIRCLE:
+                    rasterCircle(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), color);
+                    break;
+                case GlcdDisplayList.OP_FILL_CIRCLE:
+                    rasterFillCircle(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), color);
+                    break;
+                case GlcdDisplayList.OP_ELLIPSE:
+                    rasterEllipse(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), color);
+                    break;
+                case GlcdDisplayList.OP_FILL_ELLIPSE:
+                    rasterFillEllipse(operand(commands, i, 0), operand(commands, i, 1), operand(commands, i, 2), operand(commands, i, 3), color);
+                    break;
+                case GlcdDisplayList.OP_STRING:
+                    rasterString(displayList.getText(commands[i + 2]), operand(commands, i, 1), operand(commands, i, 2), commands[i + 5], commands[i + 6], color);
+                    break;
+            }
+        }
+    }
 
-        invalidate();
+    private static float operand(int[] commands, int command, int index) {
+        return Float.intBitsToFloat(commands[command + 2 + index]);
+    }
+
+    public void drawPoint(int x, int y, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_POINT, color, x, y);
+    }
+
+    public void drawLine(float x1, float y1, float x2, float y2, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_LINE, color, x1, y1, x2, y2);
+    }
+
+    public void drawRectangle(float x, float y, float width, float height, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_RECTANGLE, color, x, y, width, height);
+    }
+
+    public void fillRectangle(float x, float y, float width, float height, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_FILL_RECTANGLE, color, x, y, width, height);
+    }
+
+    public void drawRoundRectangle(float x, float y, float width, float height, float radius, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_ROUND_RECTANGLE, color, x, y, width, height, radius);
+    }
+
+    public void fillRoundRectangle(float x, float y, float width, float height, float radius, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_FILL_ROUND_RECTANGLE, color, x, y, width, height, radius);
+    }
+
+    public void drawShadowRoundRectangle(float x, float y, float width, float height, float radius, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_SHADOW_ROUND_RECTANGLE, color, x, y, width, height, radius);
+    }
+
+    public void drawCircle(float xCenter, float yCenter, float radius, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_CIRCLE, color, xCenter, yCenter, radius);
+    }
+
+    public void fillCircle(float xCenter, float yCenter, float radius, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_FILL_CIRCLE, color, xCenter, yCenter, radius);
+    }
+
+    public void drawEllipse(float xCenter, float yCenter, float radiusX, float radiusY, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_ELLIPSE, color, xCenter, yCenter, radiusX, radiusY);
+    }
+
+    public void fillEllipse(float xCenter, float yCenter, float radiusX, float radiusY, int color) {
+        if (recording != null)
+            recording.add(GlcdDisplayList.OP_FILL_ELLIPSE, color, xCenter, yCenter, radiusX, radiusY);
+    }
+
+    public void drawString(String text, float x, float y, int textSize, int textFont, int color) {
+        if (recording != null && text != null)
+            recording.addString(text, x, y, textSize, textFont, color);
     }
 
     public float absDiff(float a, float b) {
@@ -121,16 +289,61 @@ public class GlcdView extends View implements OnTouchListener {
         return b - a;
     }
 
-    public void drawPoint(int x, int y, int color) {
-        paint.setColor(color);
-        float left = (originY + height) - (y + 1) * pixelY;
-        float top = (x * pixelX) + originX;
-        float right = (originY + height) - (y * pixelY);
-        float bottom = ((x + 1) * pixelX) + originX;
-        canvas.drawRect(left, top, right, bottom, paint);
+    private void rasterPoint(int x, int y, int color) {
+        if (x >= 0 && x < glcdWidth && y >= 0 && y < glcdHeight)
+            frameBuffer[y * glcdWidth + x] = color;
     }
 
-    public void drawLine(float x1, float y1, float x2, float y2, int color) {
+    /**
+     * Draws the pixels from x1 to x2 of row y.
+     */
+    private void drawSpan(int x1, int x2, int y, int color) {
+        if (y < 0 || y >= glcdHeight)
+            return;
+        if (x1 < 0)
+            x1 = 0;
+        if (x2 >= glcdWidth)
+            x2 = glcdWidth - 1;
+        if (x1 <= x2)
+            Arrays.fill(frameBuffer, y * glcdWidth + x1, y * glcdWidth + x2 + 1, color);
+    }
+
+    /**
+     * Fills every pixel whose center is inside the given area.
+     */
+    private void fillArea(float x, float y, float width, float height, int color) {
+        int left = Math.max(0, (int) Math.ceil(x - 0.5f));
+        int right = Math.min(glcdWidth, (int) Math.ceil(x + width - 0.5f));
+        int top = Math.max(0, (int) Math.ceil(y - 0.5f));
+        int bottom = Math.min(glcdHeight, (int) Math.ceil(y + height - 0.5f));
+        if (left >= right)
+            return;
+        for (int row = top; row < bottom; row++) {
+            Arrays.fill(frameBuffer, row * glcdWidth + left, row * glcdWidth + right, color);
+        }
+    }
+
+    private void fillCircleArea(float xCenter, float yCenter, float radius, int color) {
+        fillRoundArea((int) xCenter, (int) yCenter, (int) xCenter, (int) yCenter, radius, color);
+    }
+
+    /**
+     * Fills the rows from top up and from bottom down of a rectangle whose corners
+     * are rounded around the given centers, one span per row.
+     */
+    private void fillRoundArea(int left, int top, int right, int bottom, float radius, int color) {
+        int dx = (int) radius;
+        for (int dy = 0; dy <= radius; dy++) {
+            // Widest span whose ends are still inside the circle, it only shrinks row by row
+            while (dx * dx > radius * radius - dy * dy)
+                dx--;
+            drawSpan(left - dx, right + dx, top - dy, color);
+            if (bottom + dy != top - dy)
+                drawSpan(left - dx, right + dx, bottom + dy, color);
+        }
+    }
+
+    private void rasterLine(float x1, float y1, float x2, float y2, int color) {
         float deltaX, deltaY, x, y;
         boolean steep;
         float error, yStep;
@@ -172,21 +385,26 @@ public class GlcdView extends View implements OnTouchListener {
         else
             yStep = -1;
 
+        // A shallow line is drawn as one span per row, a steep one has a pixel per row
+        int spanStart = (int) x1;
         for (x = x1; x <= x2; x++) {
-            if (steep) {
-                drawPoint((int) y, (int) x, color);
-            } else {
-                drawPoint((int) x, (int) y, color);
-            }
+            if (steep)
+                rasterPoint((int) y, (int) x, color);
             error -= deltaY;
             if (error < 0) {
+                if (!steep) {
+                    drawSpan(spanStart, (int) x, (int) y, color);
+                    spanStart = (int) x + 1;
+                }
                 y = y + yStep;
                 error += deltaX;
             }
         }
+        if (!steep)
+            drawSpan(spanStart, (int) (x - 1), (int) y, color);
     }
 
-    public void drawRectangle(float x, float y, float width, float height, int color) {
+    private void rasterRectangle(float x, float y, float width, float height, int color) {
         if (x > glcdWidth - 1)
             x = glcdWidth - 1;
         if (y > glcdHeight - 1)
@@ -201,15 +419,13 @@ public class GlcdView extends View implements OnTouchListener {
             height = glcdHeight - y - 1;
 
 
-        drawLine(x, y, x + width, y, color);
-        drawLine(x, y, x, y + height, color);
-        drawLine(x + width, y, x + width, y + height, color);
-        drawLine(x, y + height, x + width, y + height, color);
+        rasterLine(x, y, x + width, y, color);
+        rasterLine(x, y, x, y + height, color);
+        rasterLine(x + width, y, x + width, y + height, color);
+        rasterLine(x, y + height, x + width, y + height, color);
     }
 
-    public void fillRectangle(float x, float y, float width, float height, int color) {
-        paint.setColor(color);
-        paint.setStyle(Paint.Style.FILL);
+    private void rasterFillRectangle(float x, float y, float width, float height, int color) {
 
         /*
         if (x > glcdWidth-1)
@@ -226,10 +442,10 @@ public class GlcdView extends View implements OnTouchListener {
             height = glcdHeight-y-1;
         */
 
-        canvas.drawRect(originY + this.height - ((y + height + 1) * pixelY), x * pixelX + originX, originY + this.height - (y * pixelY), (x + width + 1) * pixelX + originX, paint);
+        fillArea(x, y, width + 1, height + 1, color);
     }
 
-    public void drawRoundRectangle(float x, float y, float width, float height, float radius, int color) {
+    private void rasterRoundRectangle(float x, float y, float width, float height, float radius, int color) {
         if (x > glcdWidth - 1)
             x = glcdWidth - 1;
         if (y > glcdHeight - 1)
@@ -251,41 +467,56 @@ public class GlcdView extends View implements OnTouchListener {
                 radius = (height / 2);
         }
 
-        drawLine(x + radius, y, x + width - (radius), y, color);
-        drawLine(x + radius, y + height, x + width - (radius), y + height, color);
-        drawLine(x, y + radius, x, y + height - (radius), color);
-        drawLine(x + width, y + radius, x + width, y + height - (radius), color);
-
-        if (radius > 0) {
-            float tSwitch;
-            float x1 = 0, y1 = radius;
-            tSwitch = 3 - 2 * radius;
-            while (x1 <= y1) {
+        rasterLine(x + radius, y, x + width - (radius), y, color);
+        rasterLine(x + radius, y + height, x + width - (radius), y + height, color);
+        rasterLine(x, y + radius, x, y + height - (radius), color);
+        rasterLine(x + width, y + radius, x + width, y + height - (radius), color);
 
-                drawPoint((int) (x + radius - x1), (int) (y + radius - y1), color);
-                drawPoint((int) (x + radius - y1), (int) (y + radius - x1), color);
-
-                drawPoint((int) (x + width - radius + x1), (int) (y + radius - y1), color);
-                drawPoint((int) (x + width - radius + y1), (int) (y + radius - x1), color);
-
-                drawPoint((int) (x + width - radius + x1), (int) (y + height - radius + y1), color);
-                drawPoint((int) (x + width - radius + y1), (int) (y + height - radius + x1), color);
-
-                drawPoint((int) (x + radius - x1), (int) (y + height - radius + y1), color);
-                drawPoint((int) (x + radius - y1), (int) (y + height - radius + x1), color);
+        if (radius > 0)
+            rasterRoundCorners(x, y, width, height, radius, color);
+    }
 
-                if (tSwitch < 0)
-                    tSwitch += (4 * x1 + 6);
-                else {
-                    tSwitch += (4 * (x1 - y1) + 10);
-                    y1--;
-                }
-                x1++;
+    /**
+     * Midpoint circle arcs of the four corners. The octants near the top and
+     * bottom edges move along rows, so their pixels are drawn as one span per
+     * row, the ones near the sides have a single pixel per row.
+     */
+    private void rasterRoundCorners(float x, float y, float width, float height, float radius, int color) {
+        float tSwitch;
+        float x1 = 0, y1 = radius, spanStart = 0;
+        tSwitch = 3 - 2 * radius;
+        while (x1 <= y1) {
+            rasterPoint((int) (x + radius - y1), (int) (y + radius - x1), color);
+            rasterPoint((int) (x + width - radius + y1), (int) (y + radius - x1), color);
+            rasterPoint((int) (x + width - radius + y1), (int) (y + height - radius + x1), color);
+            rasterPoint((int) (x + radius - y1), (int) (y + height - radius + x1), color);
+
+            if (tSwitch < 0)
+                tSwitch += (4 * x1 + 6);
+            else {
+                tSwitch += (4 * (x1 - y1) + 10);
+                drawCornerSpans(x, y, width, height, radius, spanStart, x1, y1, color);
+                spanStart = x1 + 1;
+                y1--;
             }
+            x1++;
         }
+        if (spanStart < x1)
+            drawCornerSpans(x, y, width, height, radius, spanStart, x1 - 1, y1, color);
     }
 
-    public void fillRoundRectangle(float x, float y, float width, float height, float radius, int color) {
+    private void drawCornerSpans(float x, float y, float width, float height, float radius,
+                                 float from, float to, float row, int color) {
+        int top = (int) (y + radius - row), bottom = (int) (y + height - radius + row);
+        int left1 = (int) (x + radius - to), left2 = (int) (x + radius - from);
+        int right1 = (int) (x + width - radius + from), right2 = (int) (x + width - radius + to);
+        drawSpan(left1, left2, top, color);
+        drawSpan(right1, right2, top, color);
+        drawSpan(right1, right2, bottom, color);
+        drawSpan(left1, left2, bottom, color);
+    }
+
+    private void rasterFillRoundRectangle(float x, float y, float width, float height, float radius, int color) {
         if (x > glcdWidth - 1)
             x = glcdWidth - 1;
         if (y > glcdHeight - 1)
@@ -308,21 +539,16 @@ public class GlcdView extends View implements OnTouchListener {
         }
 
 
-        drawRoundRectangle(x, y, width, height, radius, color);
-        fillRectangle(x + radius, y, width - 2 * radius, height, color);
-        fillRectangle(x, y + radius, width, height - 2 * radius, color);
+        rasterRoundRectangle(x, y, width, height, radius, color);
+        rasterFillRectangle(x + radius, y, width - 2 * radius, height, color);
+        rasterFillRectangle(x, y + radius, width, height - 2 * radius, color);
 
-        if (radius > 0) {
-            paint.setColor(color);
-            paint.setStyle(Paint.Style.FILL);
-            canvas.drawCircle(originY + this.height - ((y + radius) * pixelY) - (pixelX / 2), ((x + radius) * pixelX) + originX + (pixelX / 2), (radius * pixelX), paint);
-            canvas.drawCircle(originY + this.height - ((y + radius) * pixelY) - (pixelX / 2), ((x + width - radius) * pixelX) + originX + (pixelX / 2), (radius * pixelX), paint);
-            canvas.drawCircle(originY + this.height - ((y + height - radius) * pixelY) - (pixelX / 2), ((x + radius) * pixelX) + originX + (pixelX / 2), (radius * pixelX), paint);
-            canvas.drawCircle(originY + this.height - ((y + height - radius) * pixelY) - (pixelX / 2), ((x + width - radius) * pixelX) + originX + (pixelX / 2), (radius * pixelX), paint);
-        }
+        if (radius > 0)
+            fillRoundArea((int) (x + radius), (int) (y + radius), (int) (x + width - radius),
+                    (int) (y + height - radius), radius, color);
     }
 
-    public void drawShadowRoundRectangle(float x, float y, float width, float height, float radius, int color) {
+    private void rasterShadowRoundRectangle(float x, float y, float width, float height, float radius, int color) {
         if (x > glcdWidth - 1)
             x = glcdWidth - 1;
         if (y > glcdHeight - 1)
@@ -344,70 +570,45 @@ public class GlcdView extends View implements OnTouchListener {
                 radius = (height / 2);
         }
 
-        drawLine(x + radius, y, x + width - (radius), y, color);
-        drawLine(x + radius, y + height, x + width - (radius), y + height, background);
-        drawLine(x, y + radius, x, y + height - (radius), color);
-        drawLine(x + width, y + radius, x + width, y + height - (radius), background);
-
-        if (radius > 0) {
-            float tSwitch;
-            float x1 = 0, y1 = radius;
-            tSwitch = 3 - 2 * radius;
-            while (x1 <= y1) {
+        rasterLine(x + radius, y, x + width - (radius), y, color);
+        rasterLine(x + radius, y + height, x + width - (radius), y + height, background);
+        rasterLine(x, y + radius, x, y + height - (radius), color);
+        rasterLine(x + width, y + radius, x + width, y + height - (radius), background);
 
-                drawPoint((int) (x + radius - x1), (int) (y + radius - y1), color);
-                drawPoint((int) (x + radius - y1), (int) (y + radius - x1), color);
-
-                drawPoint((int) (x + width - radius + x1), (int) (y + radius - y1), color);
-                drawPoint((int) (x + width - radius + y1), (int) (y + radius - x1), color);
-
-                drawPoint((int) (x + width - radius + x1), (int) (y + height - radius + y1), color);
-                drawPoint((int) (x + width - radius + y1), (int) (y + height - radius + x1), color);
-
-                drawPoint((int) (x + radius - x1), (int) (y + height - radius + y1), color);
-                drawPoint((int) (x + radius - y1), (int) (y + height - radius + x1), color);
-
-                if (tSwitch < 0)
-                    tSwitch += (4 * x1 + 6);
-                else {
-                    tSwitch += (4 * (x1 - y1) + 10);
-                    y1--;
-                }
-                x1++;
-            }
-        }
+        if (radius > 0)
+            rasterRoundCorners(x, y, width, height, radius, color);
     }
 
-    public void drawCircle(float xCenter, float yCenter, float radius, int color) {
-        drawEllipse(xCenter, yCenter, radius, radius, color);
+    private void rasterCircle(float xCenter, float yCenter, float radius, int color) {
+        rasterEllipse(xCenter, yCenter, radius, radius, color);
     }
 
-    public void fillCircle(float xCenter, float yCenter, float radius, int color) {
-        drawCircle(xCenter, yCenter, radius, color);
-        paint.setColor(color);
-        paint.setStyle(Paint.Style.FILL);
-        canvas.drawCircle(originY + height - (yCenter * pixelY) - (pixelY / 2), originX + (xCenter * pixelX) + (pixelY / 2), (radius * pixelY), paint);
+    private void rasterFillCircle(float xCenter, float yCenter, float radius, int color) {
+        rasterCircle(xCenter, yCenter, radius, color);
+        fillCircleArea(xCenter, yCenter, radius, color);
     }
 
-    public void drawEllipse(float xCenter, float yCenter, float radiusX, float radiusY, int color) {
+    private void rasterEllipse(float xCenter, float yCenter, float radiusX, float radiusY, int color) {
         float radiusXSqrt = radiusX * radiusX;
         float radiusYSqrt = radiusY * radiusY;
-        float x = 0, y = radiusY;
+        float x = 0, y = radiusY, spanStart = 0;
         float Px = 0, Py = 2 * radiusXSqrt * radiusY;
-        drawEllipsePoints(xCenter, yCenter, x, y, color);
         float P = (float) (radiusYSqrt - (radiusXSqrt * radiusY) + (0.25 * radiusXSqrt));
+        // Near the top and bottom x moves faster than y, every row is one span
         while (Px < Py) {
             x++;
             Px = Px + 2 * radiusYSqrt;
             if (P < 0) {
                 P = P + radiusYSqrt + Px;
             } else {
+                drawEllipseSpans(xCenter, yCenter, spanStart, x - 1, y, color);
+                spanStart = x;
                 y--;
                 Py = Py - 2 * radiusXSqrt;
                 P = P + radiusYSqrt + Px - Py;
             }
-            drawEllipsePoints(xCenter, yCenter, x, y, color);
         }
+        drawEllipseSpans(xCenter, yCenter, spanStart, x, y, color);
         P = (float) (radiusYSqrt * (x + 0.5) * (x + 0.5) + radiusXSqrt * (y - 1) * (y - 1) - radiusXSqrt * radiusYSqrt);
         while (y > 0) {
             y--;
@@ -419,35 +620,35 @@ public class GlcdView extends View implements OnTouchListener {
                 Px = Px + 2 * radiusYSqrt;
                 P = P + radiusXSqrt - Py + Px;
             }
-            drawEllipsePoints(xCenter, yCenter, x, y, color);
+            drawEllipseSpans(xCenter, yCenter, x, x, y, color);
         }
     }
 
-    public void fillEllipse(float xCenter, float yCenter, float radiusX, float radiusY, int color) {
+    private void rasterFillEllipse(float xCenter, float yCenter, float radiusX, float radiusY, int color) {
         if (radiusX == radiusY) {
-            fillCircle(xCenter, yCenter, radiusX, color);
+            rasterFillCircle(xCenter, yCenter, radiusX, color);
         } else {
             float radiusXSqrt = radiusX * radiusX;
             float radiusYSqrt = radiusY * radiusY;
             float x = 0, y = radiusY;
             float Px = 0, Py = 2 * radiusXSqrt * radiusY;
-            fillEllipsePoints(xCenter, yCenter, x, y, color);
             float P = (float) (radiusYSqrt - (radiusXSqrt * radiusY) + (0.25 * radiusXSqrt));
+            // Rows are filled once the widest x of their half-height is known
             while (Px < Py) {
                 x++;
                 Px = Px + 2 * radiusYSqrt;
                 if (P < 0) {
                     P = P + radiusYSqrt + Px;
                 } else {
+                    fillEllipseRows(xCenter, yCenter, x - 1, y, y - 1, color);
                     y--;
                     Py = Py - 2 * radiusXSqrt;
                     P = P + radiusYSqrt + Px - Py;
                 }
-                fillEllipsePoints(xCenter, yCenter, x, y, color);
             }
             P = (float) (radiusYSqrt * (x + 0.5) * (x + 0.5) + radiusXSqrt * (y - 1) * (y - 1) - radiusXSqrt * radiusYSqrt);
             while (y > 0) {
-                y--;
+                float lastX = x;
                 Py = Py - 2 * radiusXSqrt;
                 if (P > 0) {
                     P = P + radiusXSqrt - Py;
@@ -456,146 +657,76 @@ public class GlcdView extends View implements OnTouchListener {
                     Px = Px + 2 * radiusYSqrt;
                     P = P + radiusXSqrt - Py + Px;
                 }
-                fillEllipsePoints(xCenter, yCenter, x, y, color);
+                fillEllipseRows(xCenter, yCenter, lastX, y, y - 1, color);
+                y--;
             }
+            rasterFillRectangle(xCenter - x, yCenter - y, x * 2, y * 2, color);
 
-            drawEllipse(xCenter, yCenter, radiusX, radiusY, color);
+            rasterEllipse(xCenter, yCenter, radiusX, radiusY, color);
         }
     }
 
-    private void drawEllipsePoints(float xCenter, float yCenter, float x, float y, int color) {
-        drawPoint((int) (xCenter + x), (int) (yCenter + y), color);
-        drawPoint((int) (xCenter + x), (int) (yCenter - y), color);
-        drawPoint((int) (xCenter - x), (int) (yCenter + y), color);
-        drawPoint((int) (xCenter - x), (int) (yCenter - y), color);
+    private void drawEllipseSpans(float xCenter, float yCenter, float from, float to, float y, int color) {
+        int left1 = (int) (xCenter - to), left2 = (int) (xCenter - from);
+        int right1 = (int) (xCenter + from), right2 = (int) (xCenter + to);
+        drawSpan(left1, left2, (int) (yCenter + y), color);
+        drawSpan(right1, right2, (int) (yCenter + y), color);
+        drawSpan(left1, left2, (int) (yCenter - y), color);
+        drawSpan(right1, right2, (int) (yCenter - y), color);
     }
 
-    private void fillEllipsePoints(float xCenter, float yCenter, float x, float y, int color) {
-        fillRectangle(xCenter - x, yCenter - y, x * 2, y * 2, color);
+    /**
+     * Fills the rows of an ellipse that are at least nextY but not more than
+     * y above or below its center, x being their half-width.
+     */
+    private void fillEllipseRows(float xCenter, float yCenter, float x, float y, float nextY, int color) {
+        fillArea(xCenter - x, yCenter - y, x * 2 + 1, y - nextY, color);
+        fillArea(xCenter - x, yCenter + nextY + 1, x * 2 + 1, y - nextY, color);
     }
 
-    private int drawChar(char c, float x, float y, int textSize, int textFont, int color) {
-        paint.setStyle(Paint.Style.FILL);
-        paint.setColor(color);
-        font mfont;
-        switch (textFont) {
-            case GlcdShield.FONT_ARIEL_REGULAR:
-                mfont = new ArielRegular();
-                break;
-            case GlcdShield.FONT_ARIEL_BLACK:
-                mfont = new ArielBlack();
-                break;
-            case GlcdShield.FONT_ARIEL_ITALIC:
-                mfont = new ArielItalic();
-                break;
-            case GlcdShield.FONT_COMICSANS:
-                mfont = new ComicSans();
-                break;
-            case GlcdShield.FONT_SERIF:
-                mfont = new SerifRegular();
-                break;
-            default:
-                mfont = new ArielRegular();
-                break;
-        }
-
-        if (c < mfont.getFirst_char() || c > mfont.getFirst_char() + mfont.getChar_Count()) {
+    private int rasterChar(char c, float x, float y, int textSize, int textFont, int color) {
+        GlyphAtlas atlas = getGlyphAtlas(textFont);
+        int glyph = atlas.getGlyph(c);
+        if (glyph < 0) {
             return 0;
         }
-        c -= mfont.getFirst_char();
 
         int multiplier = textSize;
-        int[] data = mfont.getFont();
-        int charInit = 0;
-        for (int widhtAdderCount = 0; widhtAdderCount < c; widhtAdderCount++) {
-            charInit += mfont.chars_width[widhtAdderCount] * 2;
-        }
-        ArrayList<Integer> charBytes = new ArrayList<Integer>();
-        for (int charBytesCount = 0; charBytesCount < mfont.chars_width[c]; charBytesCount++) {
-            charBytes.add(data[charInit + charBytesCount]);
-            int ha = data[charInit + charBytesCount];
-            for (int i = 0; i < 8; i++) {
-                if (((ha >> i) & (0x01)) == 0x01) {
-                    if (multiplier == 1) {
-                        drawPoint((int) (y + charBytesCount), (int) (x + i), color);
-                    } else {
-                        float left = (originY + height) - ((x + ((i + 1) * multiplier)) * pixelY);
-                        if (left < originY) left = originY;
-                        float top = ((y + ((charBytesCount) * multiplier)) * pixelX) + originX;
-                        if (top < originX) top = originX;
-                        float right = (originY + height) - ((x + ((i) * multiplier)) * pixelY);
-                        if (right > originY + (height)) right = originY + (height);
-                        float bottom = ((y + ((charBytesCount + 1) * multiplier)) * pixelX) + originX;
-                        if (bottom > originX + (width)) bottom = originX + (width);
-
-                        canvas.drawRect(left, top, right, bottom, paint);
-                    }
-                }
-            }
-            ha = data[charInit + charBytesCount + mfont.chars_width[c]];
-            if (mfont.getFont_height() > 8) {
-                int k = (7 - (mfont.getFont_height() - 8 - 1));
-                for (int i = k; i < 8; i++) {
-                    if (((ha >> i) & (0x01)) == 0x01) {
-                        if (multiplier == 1) {
-                            drawPoint((int) (y + charBytesCount), (int) (x + i + 8 - k), color);
-                        } else {
-                            float left = (originY + height) - ((x + ((i + 8 - k + 1) * multiplier)) * pixelY);
-                            if (left < originY) left = originY;
-                            float top = ((y + ((charBytesCount) * multiplier)) * pixelX) + originX;
-                            if (top < originX) top = originX;
-                            float right = (originY + height) - ((x + ((i + 8 - k) * multiplier)) * pixelY);
-                            if (right > originY + (height)) right = originY + (height);
-                            float bottom = ((y + ((charBytesCount + 1) * multiplier)) * pixelX) + originX;
-                            if (bottom > originX + (width)) bottom = originX + (width);
-                            canvas.drawRect(left, top, right, bottom, paint);
-                        }
-                    }
+        int rowsOffset = glyph * atlas.height;
+        for (int row = 0; row < atlas.height; row++) {
+            int columns = atlas.rows[rowsOffset + row];
+            while (columns != 0) {
+                int start = Integer.numberOfTrailingZeros(columns);
+                int end = start + Integer.numberOfTrailingZeros(~(columns >>> start));
+                columns &= -1 << end;
+                if (multiplier == 1) {
+                    drawSpan((int) (y + start), (int) (y + end - 1), (int) (x + row), color);
+                } else {
+                    fillArea(y + start * multiplier, x + row * multiplier, (end - start) * multiplier, multiplier, color);
                 }
             }
-
         }
 
-        return mfont.chars_width[c];
+        return atlas.widths[glyph];
     }
 
-    public void drawString(String text, float x, float y, int textSize, int textFont, int color) {
+    private void rasterString(String text, float x, float y, int textSize, int textFont, int color) {
 
         if (text != null) {
             int yMargin = 0;
             for (int charCount = 0; charCount < text.length(); charCount++) {
-                yMargin += (drawChar(text.charAt(charCount), y, x + yMargin, textSize, textFont, color) + 2) * textSize;
+                yMargin += (rasterChar(text.charAt(charCount), y, x + yMargin, textSize, textFont, color) + 2) * textSize;
             }
         }
     }
 
     public int getCharWidth(char c, int textSize, int textFont) {
-        font mfont;
-        switch (textFont) {
-            case GlcdShield.FONT_ARIEL_REGULAR:
-                mfont = new ArielRegular();
-                break;
-            case GlcdShield.FONT_ARIEL_BLACK:
-                mfont = new ArielBlack();
-                break;
-            case GlcdShield.FONT_ARIEL_ITALIC:
-                mfont = new ArielItalic();
-                break;
-            case GlcdShield.FONT_COMICSANS:
-                mfont = new ComicSans();
-                break;
-            case GlcdShield.FONT_SERIF:
-                mfont = new SerifRegular();
-                break;
-            default:
-                mfont = new ArielRegular();
-                break;
-        }
-        if (c < mfont.getFirst_char() || c > mfont.getFirst_char() + mfont.getChar_Count()) {
+        GlyphAtlas atlas = getGlyphAtlas(textFont);
+        int glyph = atlas.getGlyph(c);
+        if (glyph < 0) {
             return 0;
         }
-        c -= mfont.getFirst_char();
-        return (mfont.chars_width[c] + 2) * textSize;
+        return (atlas.widths[glyph] + 2) * textSize;
     }
 
     public int getStringWidth(String text, int textSize, int textFont) {
@@ -621,28 +752,88 @@ public class GlcdView extends View implements OnTouchListener {
     }
 
     public int getCharHeight(int textSize, int textFont) {
-        font mfont;
-        switch (textFont) {
-            case GlcdShield.FONT_ARIEL_REGULAR:
-                mfont = new ArielRegular();
-                break;
-            case GlcdShield.FONT_ARIEL_BLACK:
-                mfont = new ArielBlack();
-                break;
-            case GlcdShield.FONT_ARIEL_ITALIC:
-                mfont = new ArielItalic();
-                break;
-            case GlcdShield.FONT_COMICSANS:
-                mfont = new ComicSans();
-                break;
-            case GlcdShield.FONT_SERIF:
-                mfont = new SerifRegular();
-                break;
-            default:
-                mfont = new ArielRegular();
-                break;
+        return getGlyphAtlas(textFont).height * textSize;
+    }
+
+    private static final GlyphAtlas[] glyphAtlases = new GlyphAtlas[GlcdShield.FONT_SERIF + 1];
+
+    private GlyphAtlas getGlyphAtlas(int textFont) {
+        if (textFont < 0 || textFont >= glyphAtlases.length)
+            textFont = GlcdShield.FONT_ARIEL_REGULAR;
+        synchronized (glyphAtlases) {
+            if (glyphAtlases[textFont] == null) {
+                font mfont;
+                switch (textFont) {
+                    case GlcdShield.FONT_ARIEL_BLACK:
+                        mfont = new ArielBlack();
+                        break;
+                    case GlcdShield.FONT_ARIEL_ITALIC:
+                        mfont = new ArielItalic();
+                        break;
+                    case GlcdShield.FONT_COMICSANS:
+                        mfont = new ComicSans();
+                        break;
+                    case GlcdShield.FONT_SERIF:
+                        mfont = new SerifRegular();
+                        break;
+                    default:
+                        mfont = new ArielRegular();
+                        break;
+                }
+                glyphAtlases[textFont] = new GlyphAtlas(mfont);
+            }
+            return glyphAtlases[textFont];
+        }
+    }
+
+    /**
+     * A font unpacked once into one bit mask per glyph row, bit n being the
+     * glyph's column n, so text is drawn as horizontal spans.
+     */
+    private static final class GlyphAtlas {
+        final int firstChar, glyphsCount, height;
+        final int[] widths;
+        // Start of each glyph in the font data, prefix sums of the glyph sizes
+        final int[] offsets;
+        final int[] rows;
+
+        GlyphAtlas(font mfont) {
+            firstChar = mfont.getFirst_char();
+            height = mfont.getFont_height();
+            widths = mfont.getChars_width();
+            glyphsCount = Math.min(mfont.getChar_Count() + 1, widths.length);
+            int[] data = mfont.getFont();
+            offsets = new int[glyphsCount + 1];
+            rows = new int[glyphsCount * height];
+            // The second byte of a column holds the rows below 8 in its top bits
+            int k = 7 - (height - 8 - 1);
+            for (int glyph = 0; glyph < glyphsCount; glyph++) {
+                int width = widths[glyph];
+                offsets[glyph + 1] = offsets[glyph] + width * 2;
+                for (int column = 0; column < width; column++) {
+                    int bits = data[offsets[glyph] + column];
+                    for (int i = 0; i < 8 && i < height; i++) {
+                        if (((bits >> i) & 0x01) == 0x01)
+                            rows[glyph * height + i] |= 1 << column;
+                    }
+                    if (height > 8) {
+                        bits = data[offsets[glyph] + column + width];
+                        for (int i = k; i < 8; i++) {
+                            if (((bits >> i) & 0x01) == 0x01)
+                                rows[glyph * height + i + 8 - k] |= 1 << column;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the glyph's index, -1 if the font doesn't have the char
+         */
+        int getGlyph(char c) {
+            int glyph = c - firstChar;
+            return glyph >= 0 && glyph < glyphsCount ? glyph : -1;
         }
-        return mfont.getFont_height() * textSize;
     }
 
     @Override
@@ -650,22 +841,19 @@ public class GlcdView extends View implements OnTouchListener {
         float x = event.getY();
         float y = event.getX();
         int action = event.getAction();
+        GlcdShield controller = getController();
+        if (controller == null)
+            return true;
         if (x >= originX && x < originX + width && y >= originY && y < originY + height) {
             x -= originX;
             y = height - (y - originY);
             x /= pixelX;
             y /= pixelY;
 
-            List<Integer> params = new ArrayList<>();
-            params.add(action);
-            params.add((int) x);
-            params.add((int) y);
-            ((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).doOrder(GlcdShield.ORDER_HANDLETOUCH, params);
+            controller.doOrder(GlcdShield.ORDER_HANDLETOUCH, action, (int) x, (int) y);
 
         } else {
-            if (((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).currentPressedKey != null)
-                if (((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).shapes.indexOfKey(((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).currentPressedKey) > -1)
-                    ((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).shapes.get(((GlcdShield) ((OneSheeldApplication) getContext().getApplicationContext()).getRunningShields().get(controllerTag)).currentPressedKey).setIsPressed(false);
+            controller.releasePressedShape();
         }
         return true;
     }
@@ -11,12 +11,7 @@ import com.integreight.onesheeld.utils.Log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 public class ImageUtils {
     public static Bitmap decodeFile(File f, int required_size) {
@@ -133,43 +128,172 @@ public class ImageUtils {
         return RGB;
     }
 
-    public static int getMostDominantColor(Bitmap bm/* , Activity activity */) {
+    /**
+     * Averages Y, U and V straight from an NV21 preview buffer over the given
+     * rectangle, only the final average is converted to RGB.
+     */
+    public static int getNv21AverageColor(byte[] nv21, int width, int height,
+                                          int left, int top, int w, int h) {
+        int right = left + w;
+        int bottom = top + h;
+        long ySum = 0;
+        for (int row = top; row < bottom; row++) {
+            for (int i = row * width + left, end = row * width + right; i < end; i++) {
+                ySum += nv21[i] & 0xFF;
+            }
+        }
+        // V and U are interleaved after the Y plane, one pair per 2x2 pixels
+        int chromaLeft = left >> 1;
+        int chromaRight = (right + 1) >> 1;
+        int chromaTop = top >> 1;
+        int chromaBottom = (bottom + 1) >> 1;
+        long uSum = 0, vSum = 0;
+        for (int row = chromaTop; row < chromaBottom; row++) {
+            int offset = width * height + row * width;
+            for (int i = offset + chromaLeft * 2, end = offset + chromaRight * 2; i < end; i += 2) {
+                vSum += nv21[i] & 0xFF;
+                uSum += nv21[i + 1] & 0xFF;
+            }
+        }
+        int chromaCount = (chromaRight - chromaLeft) * (chromaBottom - chromaTop);
+        return yuvToRgb((int) (ySum / (w * h)), (int) (uSum / chromaCount),
+                (int) (vSum / chromaCount));
+    }
 
-        // Bitmap bm = ImageTester.getBitmapFromAsset(
-        // activity.getApplicationContext(), "colors.bmp");
+    public static int yuvToRgb(int y, int u, int v) {
+        u -= 128;
+        v -= 128;
+        int r = y + ((359 * v) >> 8);
+        int g = y - ((88 * u + 183 * v) >> 8);
+        int b = y + ((454 * u) >> 8);
+        return Color.rgb(clamp(r), clamp(g), clamp(b));
+    }
 
-        int height = bm.getHeight();
-        int width = bm.getWidth();
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
 
-        Map<Integer, Integer> m = new HashMap<>();
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                int rgb = bm.getPixel(i, j);
-                // int[] rgbArr = getRGBArr(rgb);
-                // Filter out grays....
-                // if (!isGray(rgbArr)) {
-                Integer counter = m.get(rgb);
-                if (counter == null)
-                    counter = 0;
-                counter++;
-                m.put(rgb, counter);
-                // }
+    private static final int HISTOGRAM_BITS = 4;
+    private static final int HISTOGRAM_BINS = 1 << (3 * HISTOGRAM_BITS);
+    private static final int MAX_HISTOGRAM_SAMPLES = 4096;
+    private static final int[] histogram = new int[HISTOGRAM_BINS];
+    private static final int[] histogramRed = new int[HISTOGRAM_BINS];
+    private static final int[] histogramGreen = new int[HISTOGRAM_BINS];
+    private static final int[] histogramBlue = new int[HISTOGRAM_BINS];
+    private static int[] histogramRow = new int[0];
+
+    public static synchronized int getMostDominantColor(Bitmap bm/* , Activity activity */) {
+        int width = bm.getWidth();
+        int height = bm.getHeight();
+        if (histogramRow.length < width)
+            histogramRow = new int[width];
+        clearHistogram();
+        int step = getSamplingStep(width, height);
+        for (int row = 0; row < height; row += step) {
+            bm.getPixels(histogramRow, 0, width, 0, row, width, 1);
+            for (int col = 0; col < width; col += step) {
+                addToHistogram(histogramRow[col]);
             }
         }
-        // String colourHex = getMostCommonColour(m);
-        List<Map.Entry> list = new LinkedList<Map.Entry>(m.entrySet());
+        return getHistogramTopColor();
+    }
 
-        Collections.sort(list, new Comparator<Object>() {
-            public int compare(Object o1, Object o2) {
-                return ((Comparable) ((Map.Entry) (o1)).getValue())
-                        .compareTo(((Map.Entry) (o2)).getValue());
+    /**
+     * Quantises a strided sample of the rectangle into a 4-4-4 bit RGB
+     * histogram and returns the mean colour of its fullest bin.
+     */
+    public static synchronized int getNv21DominantColor(byte[] nv21, int width, int height,
+                                                        int left, int top, int w, int h) {
+        clearHistogram();
+        int step = getSamplingStep(w, h);
+        int right = left + w;
+        int bottom = top + h;
+        for (int row = top; row < bottom; row += step) {
+            int yOffset = row * width;
+            int chromaOffset = width * height + (row >> 1) * width;
+            for (int col = left; col < right; col += step) {
+                int chroma = chromaOffset + (col & ~1);
+                addToHistogram(yuvToRgb(nv21[yOffset + col] & 0xFF,
+                        nv21[chroma + 1] & 0xFF, nv21[chroma] & 0xFF));
             }
-        });
+        }
+        return getHistogramTopColor();
+    }
+
+    private static int getSamplingStep(int w, int h) {
+        int step = 1;
+        while ((w / step) * (h / step) > MAX_HISTOGRAM_SAMPLES)
+            step++;
+        return step;
+    }
+
+    private static void clearHistogram() {
+        Arrays.fill(histogram, 0);
+        Arrays.fill(histogramRed, 0);
+        Arrays.fill(histogramGreen, 0);
+        Arrays.fill(histogramBlue, 0);
+    }
+
+    private static void addToHistogram(int color) {
+        int red = (color >> 16) & 0xff;
+        int green = (color >> 8) & 0xff;
+        int blue = color & 0xff;
+        int bin = ((red >> 4) << 8) | ((green >> 4) << 4) | (blue >> 4);
+        histogram[bin]++;
+        histogramRed[bin] += red;
+        histogramGreen[bin] += green;
+        histogramBlue[bin] += blue;
+    }
+
+    private static int getHistogramTopColor() {
+        int top = 0;
+        for (int bin = 1; bin < HISTOGRAM_BINS; bin++) {
+            if (histogram[bin] > histogram[top])
+                top = bin;
+        }
+        int count = histogram[top];
+        if (count == 0)
+            return Color.rgb(0, 0, 0);
+        return Color.rgb(histogramRed[top] / count, histogramGreen[top] / count,
+                histogramBlue[top] / count);
+    }
+
+    private static final float[] linearRgb = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            float c = i / 255f;
+            linearRgb[i] = c <= 0.04045f ? c / 12.92f : (float) Math.pow((c + 0.055f) / 1.055f, 2.4);
+        }
+    }
+
+    /**
+     * Converts an sRGB colour to CIE L*a*b* under D65.
+     */
+    public static void rgbToLab(int color, float[] lab) {
+        float r = linearRgb[(color >> 16) & 0xFF];
+        float g = linearRgb[(color >> 8) & 0xFF];
+        float b = linearRgb[color & 0xFF];
+        float x = labF((0.4124f * r + 0.3576f * g + 0.1805f * b) / 0.95047f);
+        float y = labF(0.2126f * r + 0.7152f * g + 0.0722f * b);
+        float z = labF((0.0193f * r + 0.1192f * g + 0.9505f * b) / 1.08883f);
+        lab[0] = 116 * y - 16;
+        lab[1] = 500 * (x - y);
+        lab[2] = 200 * (y - z);
+    }
+
+    private static float labF(float t) {
+        return t > 0.008856f ? (float) Math.cbrt(t) : 7.787f * t + 16f / 116;
+    }
 
-        Map.Entry me = (Map.Entry) list.get(list.size() - 1);
-        int[] rgb = getRGBArr((Integer) me.getKey());
-        return Color.rgb(rgb[0], rgb[1], rgb[2]);
-        // return getMostCommonColour(m);
+    /**
+     * The CIE76 difference of two L*a*b* colours, about 2.3 is just noticeable.
+     */
+    public static float getLabDistance(float[] lab1, float[] lab2) {
+        float l = lab1[0] - lab2[0];
+        float a = lab1[1] - lab2[1];
+        float b = lab1[2] - lab2[2];
+        return (float) Math.sqrt(l * l + a * a + b * b);
     }
 
     public static int[] getRGBArr(int color) {
@@ -0,0 +1,137 @@
+package com.integreight.onesheeld.shields.controller.utils;
+
+/**
+ * Analyses camera preview frames on one long-lived thread. At most one
+ * frame waits for the worker: a newer frame replaces it and the stale
+ * buffer is handed straight back to be refilled instead of being queued.
+ */
+public class PreviewFrameWorker extends Thread {
+    public interface PreviewFrameHandler {
+        void onAnalyseFrame(byte[] frame, int width, int height);
+
+        void onReleaseBuffer(byte[] buffer, Object owner);
+    }
+
+    private final PreviewFrameHandler handler;
+    private final Object lock = new Object();
+    private byte[] pendingFrame;
+    private Object pendingOwner;
+    private int pendingWidth;
+    private int pendingHeight;
+    private boolean running = true;
+
+    private long framesAnalysed = 0;
+    private long framesDropped = 0;
+    private long totalAnalysisNanos = 0;
+    private long maxAnalysisNanos = 0;
+
+    public PreviewFrameWorker(PreviewFrameHandler handler) {
+        super("PreviewFrameWorker");
+        this.handler = handler;
+        setDaemon(true);
+    }
+
+    /**
+     * @param owner passed back with the buffer when it's released, the camera that filled it
+     */
+    public void offer(byte[] frame, Object owner, int width, int height) {
+        byte[] staleFrame;
+        Object staleOwner;
+        synchronized (lock) {
+            if (!running) {
+                staleFrame = frame;
+                staleOwner = owner;
+            } else {
+                staleFrame = pendingFrame;
+                staleOwner = pendingOwner;
+                if (staleFrame != null)
+                    framesDropped++;
+                pendingFrame = frame;
+                pendingOwner = owner;
+                pendingWidth = width;
+                pendingHeight = height;
+                lock.notifyAll();
+            }
+        }
+        if (staleFrame != null)
+            handler.onReleaseBuffer(staleFrame, staleOwner);
+    }
+
+    public void stopWorking() {
+        byte[] staleFrame;
+        Object staleOwner;
+        synchronized (lock) {
+            running = false;
+            staleFrame = pendingFrame;
+            staleOwner = pendingOwner;
+            pendingFrame = null;
+            pendingOwner = null;
+            lock.notifyAll();
+        }
+        if (staleFrame != null)
+            handler.onReleaseBuffer(staleFrame, staleOwner);
+    }
+
+    public long getFramesAnalysed() {
+        synchronized (lock) {
+            return framesAnalysed;
+        }
+    }
+
+    public long getFramesDropped() {
+        synchronized (lock) {
+            return framesDropped;
+        }
+    }
+
+    public long getAverageAnalysisMicros() {
+        synchronized (lock) {
+            return framesAnalysed == 0 ? 0 : totalAnalysisNanos / framesAnalysed / 1000;
+        }
+    }
+
+    public long getMaxAnalysisMicros() {
+        synchronized (lock) {
+            return maxAnalysisNanos / 1000;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            byte[] frame;
+            Object owner;
+            int width, height;
+            synchronized (lock) {
+                while (running && pendingFrame == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running)
+                    return;
+                frame = pendingFrame;
+                owner = pendingOwner;
+                width = pendingWidth;
+                height = pendingHeight;
+                pendingFrame = null;
+                pendingOwner = null;
+            }
+            long start = System.nanoTime();
+            try {
+                handler.onAnalyseFrame(frame, width, height);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                synchronized (lock) {
+                    framesAnalysed++;
+                    totalAnalysisNanos += elapsed;
+                    if (elapsed > maxAnalysisNanos)
+                        maxAnalysisNanos = elapsed;
+                }
+                handler.onReleaseBuffer(frame, owner);
+            }
+        }
+    }
+}
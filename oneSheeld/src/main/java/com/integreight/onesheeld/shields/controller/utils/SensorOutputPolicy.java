@@ -0,0 +1,188 @@
+package com.integreight.onesheeld.shields.controller.utils;
+
+import com.integreight.firmatabluetooth.ShieldFrame;
+
+/**
+ * Decides what a sensor shield sends to the Arduino: samples are collected
+ * over a fixed output period and reduced to one value per axis (the latest,
+ * mean, min or max of the window), which is only sent if it moved more than
+ * the dead-band away from the last value sent. The settings may be changed
+ * from any thread, samples must be added and taken from one thread.
+ */
+public class SensorOutputPolicy {
+    public static final byte SET_OUTPUT_PERIOD = 0x02;
+    public static final byte SET_AGGREGATION_MODE = 0x03;
+    public static final byte SET_DEAD_BAND = 0x04;
+    public static final byte SET_BATCH = 0x05;
+
+    public static final int MODE_LATEST = 0;
+    public static final int MODE_MEAN = 1;
+    public static final int MODE_MIN = 2;
+    public static final int MODE_MAX = 3;
+
+    public static final int DEFAULT_OUTPUT_PERIOD = 100;
+    public static final int MIN_OUTPUT_PERIOD = 10;
+    public static final int MAX_BATCH_SIZE = 16;
+    public static final int DEFAULT_MAX_BATCH_LATENCY = 500;
+
+    private final int axesCount;
+    private final float[] latest;
+    private final float[] sum;
+    private final float[] min;
+    private final float[] max;
+    private final float[] lastSent;
+    private int samplesCount = 0;
+    private boolean hasSent = false;
+
+    private volatile int outputPeriod = DEFAULT_OUTPUT_PERIOD;
+    private volatile int mode = MODE_LATEST;
+    private volatile float deadBand = 0;
+    private volatile int batchSize = 1;
+    private volatile int maxBatchLatency = DEFAULT_MAX_BATCH_LATENCY;
+
+    public SensorOutputPolicy(int axesCount) {
+        this.axesCount = axesCount;
+        latest = new float[axesCount];
+        sum = new float[axesCount];
+        min = new float[axesCount];
+        max = new float[axesCount];
+        lastSent = new float[axesCount];
+    }
+
+    public int getAxesCount() {
+        return axesCount;
+    }
+
+    public int getOutputPeriod() {
+        return outputPeriod;
+    }
+
+    public void setOutputPeriod(int millis) {
+        outputPeriod = Math.max(MIN_OUTPUT_PERIOD, millis);
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public void setMode(int mode) {
+        if (mode < MODE_LATEST || mode > MODE_MAX)
+            mode = MODE_LATEST;
+        this.mode = mode;
+    }
+
+    public float getDeadBand() {
+        return deadBand;
+    }
+
+    public void setDeadBand(float deadBand) {
+        this.deadBand = Math.abs(deadBand);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getMaxBatchLatency() {
+        return maxBatchLatency;
+    }
+
+    /**
+     * @param size       values sent together in one frame, 1 sends every value on its own
+     * @param maxLatency longest time in ms the first value of a batch may wait
+     */
+    public void setBatch(int size, int maxLatency) {
+        batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, size));
+        maxBatchLatency = Math.max(0, maxLatency);
+    }
+
+    /**
+     * Applies the sketch's policy settings.
+     *
+     * @return true if the frame was one of the policy functions
+     */
+    public boolean onFrameReceived(ShieldFrame frame) {
+        switch (frame.getFunctionId()) {
+            case SET_OUTPUT_PERIOD:
+                setOutputPeriod(frame.getArgumentAsInteger(0));
+                return true;
+            case SET_AGGREGATION_MODE:
+                setMode(frame.getArgumentAsInteger(1, 0));
+                return true;
+            case SET_DEAD_BAND:
+                setDeadBand(frame.getArgumentAsFloat(0));
+                return true;
+            case SET_BATCH:
+                setBatch(frame.getArgumentAsInteger(1, 0),
+                        frame.getArgumentsCount() > 1 ? frame.getArgumentAsInteger(1)
+                                : DEFAULT_MAX_BATCH_LATENCY);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public void addSample(float[] values) {
+        for (int i = 0; i < axesCount; i++) {
+            float value = values[i];
+            latest[i] = value;
+            if (samplesCount == 0) {
+                sum[i] = value;
+                min[i] = value;
+                max[i] = value;
+            } else {
+                sum[i] += value;
+                if (value < min[i])
+                    min[i] = value;
+                if (value > max[i])
+                    max[i] = value;
+            }
+        }
+        samplesCount++;
+    }
+
+    /**
+     * Closes the current window and writes its value into output.
+     *
+     * @return true if the value should be sent
+     */
+    public boolean takeOutput(float[] output) {
+        if (samplesCount == 0)
+            return false;
+        boolean changed = !hasSent;
+        int mode = this.mode;
+        float deadBand = this.deadBand;
+        for (int i = 0; i < axesCount; i++) {
+            float value;
+            switch (mode) {
+                case MODE_MEAN:
+                    value = sum[i] / samplesCount;
+                    break;
+                case MODE_MIN:
+                    value = min[i];
+                    break;
+                case MODE_MAX:
+                    value = max[i];
+                    break;
+                default:
+                    value = latest[i];
+                    break;
+            }
+            output[i] = value;
+            float delta = Math.abs(value - lastSent[i]);
+            if (deadBand > 0 ? delta >= deadBand : delta > 0)
+                changed = true;
+        }
+        samplesCount = 0;
+        if (!changed)
+            return false;
+        System.arraycopy(output, 0, lastSent, 0, axesCount);
+        hasSent = true;
+        return true;
+    }
+
+    public void reset() {
+        samplesCount = 0;
+        hasSent = false;
+    }
+}
@@ -0,0 +1,245 @@
+package com.integreight.onesheeld.shields.controller.utils;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.integreight.firmatabluetooth.ShieldFrame;
+
+/**
+ * Streams Android sensors to their shields from one sensor thread. Every
+ * stream gets its sensor events and its output ticks on that thread, runs
+ * them through its {@link SensorOutputPolicy} and hands each value that
+ * should be sent to its handler as a ready pooled frame.
+ * <p>
+ * When the sketch asks for batches, values are collected and sent together
+ * in one {@link #SENSOR_BATCH_VALUE} frame: the first argument is the time
+ * of the first value in ms since the stream started (4 bytes), then one
+ * argument per value holding its delay after the first one in ms (2 bytes)
+ * followed by the value in the stream's output format.
+ * <p>
+ * Frames reach {@link SensorStreamHandler#onSensorFrame} on the sensor thread,
+ * the values that went out reach {@link SensorStreamHandler#onSensorValues}
+ * on the main thread in their own array, so UI callbacks can keep them.
+ */
+public class SensorStreamEngine {
+    public static final byte SENSOR_BATCH_VALUE = 0x02;
+
+    public interface SensorStreamHandler {
+        /**
+         * Called on the sensor thread.
+         */
+        void onSensorFrame(ShieldFrame frame);
+
+        /**
+         * Called on the main thread with a copy of the last values sent.
+         */
+        void onSensorValues(float[] values);
+    }
+
+    private static SensorStreamEngine instance;
+
+    private final HandlerThread sensorThread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private SensorManager sensorManager;
+
+    private SensorStreamEngine() {
+        sensorThread = new HandlerThread("SensorStreamEngine");
+        sensorThread.start();
+        handler = new Handler(sensorThread.getLooper());
+    }
+
+    public static synchronized SensorStreamEngine getInstance() {
+        if (instance == null)
+            instance = new SensorStreamEngine();
+        return instance;
+    }
+
+    public synchronized Sensor getSensor(Context context, int sensorType) {
+        if (sensorManager == null)
+            sensorManager = (SensorManager) context.getApplicationContext()
+                    .getSystemService(Context.SENSOR_SERVICE);
+        return sensorManager == null ? null : sensorManager.getDefaultSensor(sensorType);
+    }
+
+    public boolean hasSensor(Context context, SensorStream stream) {
+        return getSensor(context, stream.sensorType) != null;
+    }
+
+    /**
+     * @return false if the device doesn't have the stream's sensor
+     */
+    public synchronized boolean start(Context context, final SensorStream stream) {
+        if (stream.isStarted())
+            return true;
+        Sensor sensor = getSensor(context, stream.sensorType);
+        if (sensor == null)
+            return false;
+        stream.started = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stream.policy.reset();
+                stream.batchCount = 0;
+                stream.startTime = SystemClock.uptimeMillis();
+                stream.nextOutputTime = stream.startTime;
+                stream.running = true;
+                handler.post(stream);
+            }
+        });
+        sensorManager.registerListener(stream, sensor,
+                SensorManager.SENSOR_DELAY_GAME, handler);
+        return true;
+    }
+
+    public synchronized void stop(final SensorStream stream) {
+        if (!stream.isStarted())
+            return;
+        stream.started = false;
+        sensorManager.unregisterListener(stream);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stream.running = false;
+                handler.removeCallbacks(stream);
+            }
+        });
+    }
+
+    public static class SensorStream implements SensorEventListener, Runnable {
+        private final int sensorType;
+        private final byte shieldId;
+        private final byte functionId;
+        private final int integerBytes;
+        private final SensorOutputPolicy policy;
+        private final float[] values;
+        private final SensorStreamHandler streamHandler;
+        private volatile boolean started = false;
+        private boolean running = false;
+        private long startTime;
+        private long nextOutputTime;
+
+        private final float[] batchValues;
+        private final long[] batchTimes = new long[SensorOutputPolicy.MAX_BATCH_SIZE];
+        private final byte[] batchArgument;
+        private int batchCount = 0;
+
+        /**
+         * @param axesCount    values sent per output
+         * @param integerBytes send the first value rounded into this many bytes, 0 sends every axis as a float
+         */
+        public SensorStream(int sensorType, byte shieldId, byte functionId,
+                            int axesCount, int integerBytes, SensorStreamHandler streamHandler) {
+            this.sensorType = sensorType;
+            this.shieldId = shieldId;
+            this.functionId = functionId;
+            this.integerBytes = integerBytes;
+            this.streamHandler = streamHandler;
+            policy = new SensorOutputPolicy(axesCount);
+            values = new float[axesCount];
+            batchValues = new float[SensorOutputPolicy.MAX_BATCH_SIZE * axesCount];
+            batchArgument = new byte[2 + (integerBytes > 0 ? integerBytes : axesCount * 4)];
+        }
+
+        public int getSensorType() {
+            return sensorType;
+        }
+
+        public SensorOutputPolicy getOutputPolicy() {
+            return policy;
+        }
+
+        public boolean isStarted() {
+            return started;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (running && event.values.length >= values.length)
+                policy.addSample(event.values);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        }
+
+        @Override
+        public void run() {
+            if (!running)
+                return;
+            long now = SystemClock.uptimeMillis();
+            int batchSize = policy.getBatchSize();
+            if (policy.takeOutput(values)) {
+                if (batchSize > 1 || batchCount > 0) {
+                    System.arraycopy(values, 0, batchValues, batchCount * values.length, values.length);
+                    batchTimes[batchCount++] = now;
+                } else {
+                    ShieldFrame frame = ShieldFrame.obtain(shieldId, functionId);
+                    if (integerBytes > 0) {
+                        frame.addIntegerArgument(integerBytes, Math.round(values[0]));
+                    } else {
+                        for (float value : values) {
+                            frame.addFloatArgument(value);
+                        }
+                    }
+                    output(frame);
+                }
+            }
+            if (batchCount > 0 && (batchCount >= batchSize
+                    || now - batchTimes[0] >= policy.getMaxBatchLatency()))
+                sendBatch();
+            // Ticks stay on a fixed grid unless the thread falls a whole period behind
+            nextOutputTime += policy.getOutputPeriod();
+            if (nextOutputTime <= now)
+                nextOutputTime = now + policy.getOutputPeriod();
+            getInstance().handler.postAtTime(this, nextOutputTime);
+        }
+
+        private void sendBatch() {
+            int axesCount = values.length;
+            long baseTime = batchTimes[0];
+            ShieldFrame frame = ShieldFrame.obtain(shieldId, SENSOR_BATCH_VALUE);
+            frame.addIntegerArgument(4, (int) (baseTime - startTime));
+            for (int i = 0; i < batchCount; i++) {
+                int delay = (int) Math.min(0xFFFF, batchTimes[i] - baseTime);
+                batchArgument[0] = (byte) delay;
+                batchArgument[1] = (byte) (delay >> 8);
+                if (integerBytes > 0) {
+                    writeInteger(2, integerBytes, Math.round(batchValues[i * axesCount]));
+                } else {
+                    for (int j = 0; j < axesCount; j++) {
+                        writeInteger(2 + j * 4, 4, Float.floatToIntBits(batchValues[i * axesCount + j]));
+                    }
+                }
+                frame.addArgument(batchArgument);
+            }
+            batchCount = 0;
+            output(frame);
+        }
+
+        private void output(ShieldFrame frame) {
+            streamHandler.onSensorFrame(frame);
+            // values is reused on the next tick
+            final float[] output = values.clone();
+            getInstance().mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    streamHandler.onSensorValues(output);
+                }
+            });
+        }
+
+        private void writeInteger(int offset, int bytes, int value) {
+            for (int i = 0; i < bytes; i++) {
+                batchArgument[offset + i] = (byte) (value >> (8 * i));
+            }
+        }
+    }
+}
@@ -3,9 +3,6 @@ package com.integreight.onesheeld.shields.controller.utils.glcd;
 import com.integreight.onesheeld.shields.controller.GlcdShield;
 import com.integreight.onesheeld.shields.controller.utils.GlcdView;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Created by Moustafa Nasr on 7/22/2015.
  */
@@ -103,26 +100,14 @@ public class Slider implements ButtonShape {
     @Override
     public void applyTouch(GlcdShield controller) {
         if (controller != null) {
-            List<Integer> params = new ArrayList<>();
-            params.add((int) (btnX));
-            params.add((int) (btnY));
-            params.add((int) (btnX + btnWidth));
-            params.add((int) (btnY + btnHeight));
-            params.add(btnTouchId);
-            controller.doOrder(GlcdShield.ORDER_APPLYTOUCH, params);
+            controller.doOrder(GlcdShield.ORDER_APPLYTOUCH, (int) (btnX), (int) (btnY), (int) (btnX + btnWidth), (int) (btnY + btnHeight), btnTouchId);
         }
     }
 
     @Override
     public void clearTouch(GlcdShield controller) {
         if (controller != null) {
-            List<Integer> params = new ArrayList<>();
-            params.add((int) (btnX));
-            params.add((int) (btnY));
-            params.add((int) (btnX + btnWidth));
-            params.add((int) (btnY + btnHeight));
-            params.add(null);
-            controller.doOrder(GlcdShield.ORDER_APPLYTOUCH, params);
+            controller.doOrder(GlcdShield.ORDER_APPLYTOUCH, (int) (btnX), (int) (btnY), (int) (btnX + btnWidth), (int) (btnY + btnHeight), GlcdShield.NO_TOUCH);
         }
     }
 
@@ -1,9 +1,27 @@
 package com.integreight.onesheeld.utils;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-public class TimeOut extends Thread {
+/**
+ * Counts down on one scheduler thread shared by every TimeOut, ticking once
+ * a second while there's a handler. The handlers run on that thread one
+ * after the other, so they have to return quickly: a slow handler delays
+ * the ticks and timeouts of every other TimeOut.
+ */
+public class TimeOut {
 
-    boolean isTimeout;
+    private static final long TICK_MILLIS = 1000;
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TimeOut");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public interface TimeoutHandler {
         void onTimeout();
@@ -11,57 +29,94 @@ public class TimeOut extends Thread {
         void onTick(int secondsLeft);
     }
 
-    int secondsLeft;
-    int totalSeconds;
-    TimeoutHandler handler;
+    private volatile boolean isTimeout;
+    private volatile boolean isAlive;
+    private volatile long deadline;
+    private final long totalMillis;
+    private final TimeoutHandler handler;
+    private ScheduledFuture<?> future;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            onTimerFired();
+        }
+    };
 
+    /**
+     * Times out seconds + 1 seconds after the last reset, ticking with seconds
+     * left from seconds down to 1, as the old one thread per TimeOut did.
+     */
     public TimeOut(int seconds, TimeoutHandler handler) {
-        isTimeout = false;
-        this.totalSeconds = seconds;
-        this.handler = handler;
-        stopTimer();
-        start();
+        this(seconds + 1, TimeUnit.SECONDS, handler);
     }
 
     public TimeOut(int seconds) {
+        this(seconds + 1, TimeUnit.SECONDS, null);
+    }
+
+    public TimeOut(long duration, TimeUnit unit, TimeoutHandler handler) {
         isTimeout = false;
-        this.totalSeconds = seconds;
-        stopTimer();
+        this.totalMillis = unit.toMillis(duration);
+        this.handler = handler;
         start();
     }
 
     public void resetTimer() {
-        secondsLeft = totalSeconds;
+        deadline = now() + totalMillis;
     }
 
     public boolean isTimeout() {
         return isTimeout;
     }
 
-    public void stopTimer() {
-        if (isAlive()) this.interrupt();
+    public boolean isAlive() {
+        return isAlive;
     }
 
-    @Override
-    public synchronized void start() {
-        // TODO Auto-generated method stub
+    public synchronized void stopTimer() {
+        isAlive = false;
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    private synchronized void start() {
         resetTimer();
-        super.start();
+        isAlive = true;
+        schedule(totalMillis);
     }
 
-    @Override
-    public void run() {
-        try {
-            do {
-
-                Thread.sleep(1000);
-                if (handler != null && secondsLeft != 0) handler.onTick(secondsLeft);
-                secondsLeft--;
-            } while (secondsLeft >= 0);
-            isTimeout = true;
-            if (handler != null) handler.onTimeout();
-        } catch (InterruptedException e) {
-            return;
+    private void schedule(long millisLeft) {
+        long delay = handler != null ? Math.min(millisLeft, TICK_MILLIS) : millisLeft;
+        future = timer.schedule(check, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void onTimerFired() {
+        int secondsLeft = 0;
+        synchronized (this) {
+            if (!isAlive)
+                return;
+            long millisLeft = deadline - now();
+            if (millisLeft > 0) {
+                secondsLeft = (int) ((millisLeft + TICK_MILLIS - 1) / TICK_MILLIS);
+                schedule(millisLeft);
+            } else {
+                isAlive = false;
+                isTimeout = true;
+                future = null;
+            }
         }
+        if (handler == null)
+            return;
+        if (secondsLeft > 0)
+            handler.onTick(secondsLeft);
+        else
+            handler.onTimeout();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
     }
 }
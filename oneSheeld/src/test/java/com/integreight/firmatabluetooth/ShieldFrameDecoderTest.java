@@ -0,0 +1,211 @@
+package com.integreight.firmatabluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ShieldFrameDecoderTest {
+    private static final byte SHIELD_ID = 0x0A;
+    private static final byte OTHER_SHIELD_ID = 0x0B;
+    private static final long TIMEOUT_MILLIS = 2000;
+    private static final long MILLI = 1000000L;
+
+    private final List<ShieldFrame> frames = new ArrayList<>();
+    private ShieldFrameDecoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new ShieldFrameDecoder(new ShieldFrameDecoder.ShieldFrameDecoderHandler() {
+            @Override
+            public void onFrameDecoded(int arduinoLibraryVersion, ShieldFrame frame) {
+                frames.add(frame);
+            }
+        });
+        decoder.setFrameTimeout(TIMEOUT_MILLIS);
+        decoder.acceptShieldId(SHIELD_ID);
+        decoder.acceptShieldId(OTHER_SHIELD_ID);
+    }
+
+    private static byte[] frame(byte shieldId, byte functionId, byte[]... arguments) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ShieldFrame.START_OF_FRAME);
+        out.write(1);
+        out.write(shieldId);
+        out.write(0);
+        out.write(functionId);
+        out.write(arguments.length);
+        out.write(255 - arguments.length);
+        for (byte[] argument : arguments) {
+            out.write(argument.length);
+            out.write(255 - argument.length);
+            out.write(argument, 0, argument.length);
+        }
+        out.write(ShieldFrame.END_OF_FRAME);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private void decode(byte[] bytes, long nowMillis) {
+        decoder.decode(bytes, 0, bytes.length, nowMillis * MILLI);
+    }
+
+    private void assertFrame(ShieldFrame frame, byte shieldId, byte functionId, byte[]... arguments) {
+        assertEquals(shieldId, frame.getShieldId());
+        assertEquals(functionId, frame.getFunctionId());
+        assertEquals(arguments.length, frame.getArgumentsCount());
+        for (int i = 0; i < arguments.length; i++) {
+            assertArrayEquals(arguments[i], frame.getArgument(i));
+        }
+    }
+
+    @Test
+    public void decodesWholeFrame() {
+        decode(frame(SHIELD_ID, (byte) 0x01, new byte[]{1, 2, 3}, new byte[]{4}), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x01, new byte[]{1, 2, 3}, new byte[]{4});
+        assertFalse(decoder.isInsideFrame());
+    }
+
+    @Test
+    public void decodesFrameWithoutArguments() {
+        decode(frame(SHIELD_ID, (byte) 0x02), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x02);
+    }
+
+    @Test
+    public void decodesFrameFedByteByByte() {
+        byte[] bytes = frame(SHIELD_ID, (byte) 0x01, new byte[]{1, 2, 3}, new byte[]{(byte) 0xFF, 0});
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(0, frames.size());
+            decoder.decode(bytes, i, 1, i * MILLI);
+        }
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x01, new byte[]{1, 2, 3}, new byte[]{(byte) 0xFF, 0});
+    }
+
+    @Test
+    public void decodesFrameSplitInsideAnArgument() {
+        byte[] argument = new byte[100];
+        for (int i = 0; i < argument.length; i++) {
+            argument[i] = (byte) i;
+        }
+        byte[] bytes = frame(SHIELD_ID, (byte) 0x03, argument);
+        decoder.decode(bytes, 0, 20, 0);
+        decoder.decode(bytes, 20, 50, MILLI);
+        decoder.decode(bytes, 70, bytes.length - 70, 2 * MILLI);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x03, argument);
+    }
+
+    @Test
+    public void decodesBackToBackFrames() {
+        decode(concat(frame(SHIELD_ID, (byte) 0x01, new byte[]{1}),
+                frame(OTHER_SHIELD_ID, (byte) 0x02, new byte[]{2})), 0);
+        assertEquals(2, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x01, new byte[]{1});
+        assertFrame(frames.get(1), OTHER_SHIELD_ID, (byte) 0x02, new byte[]{2});
+    }
+
+    @Test
+    public void keepsFrameWithinTimeout() {
+        byte[] bytes = frame(SHIELD_ID, (byte) 0x01, new byte[]{1, 2});
+        decoder.decode(bytes, 0, 5, 0);
+        decoder.decode(bytes, 5, bytes.length - 5, TIMEOUT_MILLIS * MILLI);
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void dropsFrameAfterTimeout() {
+        byte[] bytes = frame(SHIELD_ID, (byte) 0x01, new byte[]{1, 2});
+        decoder.decode(bytes, 0, 5, 0);
+        decoder.decode(bytes, 5, bytes.length - 5, (TIMEOUT_MILLIS + 1) * MILLI);
+        assertEquals(0, frames.size());
+        assertFalse(decoder.isInsideFrame());
+
+        decode(bytes, (TIMEOUT_MILLIS + 2));
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void ignoresUnknownShieldId() {
+        decode(frame((byte) 0x33, (byte) 0x01, new byte[]{1}), 0);
+        assertEquals(0, frames.size());
+        decode(frame(SHIELD_ID, (byte) 0x01, new byte[]{1}), 0);
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void dropsFrameWithBadArgumentsNumberCheck() {
+        byte[] bad = frame(SHIELD_ID, (byte) 0x01, new byte[]{1});
+        bad[6] = 0x10;
+        decode(concat(bad, frame(SHIELD_ID, (byte) 0x02, new byte[]{2})), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x02, new byte[]{2});
+    }
+
+    @Test
+    public void dropsFrameWithBadArgumentLengthCheck() {
+        byte[] bad = frame(SHIELD_ID, (byte) 0x01, new byte[]{1, 2});
+        bad[8] = 0x10;
+        decode(concat(bad, frame(SHIELD_ID, (byte) 0x02, new byte[]{2})), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x02, new byte[]{2});
+    }
+
+    @Test
+    public void dropsFrameWithoutEndOfFrame() {
+        byte[] bad = frame(SHIELD_ID, (byte) 0x01, new byte[]{1});
+        bad[bad.length - 1] = 0x55;
+        decode(concat(bad, frame(SHIELD_ID, (byte) 0x02)), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x02);
+    }
+
+    @Test
+    public void resyncsOnStartOfFrameAsShieldId() {
+        byte[] truncated = {ShieldFrame.START_OF_FRAME, 1};
+        decode(concat(truncated, frame(SHIELD_ID, (byte) 0x01, new byte[]{7})), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x01, new byte[]{7});
+    }
+
+    @Test
+    public void resyncsOnStartOfFrameAsArgumentsNumberCheck() {
+        byte[] truncated = {ShieldFrame.START_OF_FRAME, 1, SHIELD_ID, 0, 0x01, 0x02};
+        decode(concat(truncated, frame(SHIELD_ID, (byte) 0x02, new byte[]{7})), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x02, new byte[]{7});
+    }
+
+    @Test
+    public void resyncsOnStartOfFrameAsArgumentLengthCheck() {
+        byte[] truncated = {ShieldFrame.START_OF_FRAME, 1, SHIELD_ID, 0, 0x01, 0x01, (byte) 0xFE, 0x03};
+        decode(concat(truncated, frame(SHIELD_ID, (byte) 0x02, new byte[]{7})), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x02, new byte[]{7});
+    }
+
+    @Test
+    public void resyncsOnStartOfFrameInsteadOfEndOfFrame() {
+        byte[] truncated = {ShieldFrame.START_OF_FRAME, 1, SHIELD_ID, 0, 0x01, 0x00, (byte) 0xFF};
+        decode(concat(truncated, frame(SHIELD_ID, (byte) 0x02, new byte[]{7})), 0);
+        assertEquals(1, frames.size());
+        assertFrame(frames.get(0), SHIELD_ID, (byte) 0x02, new byte[]{7});
+        assertFalse(decoder.isInsideFrame());
+    }
+}
@@ -0,0 +1,66 @@
+package com.integreight.firmatabluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ShieldFrameTest {
+    private static final byte SHIELD_ID = 0x0A;
+    private static final byte FUNCTION_ID = 0x01;
+
+    @Test
+    public void keepsByteArgumentsWhenGrowing() {
+        ShieldFrame frame = new ShieldFrame(SHIELD_ID, FUNCTION_ID);
+        for (int i = 0; i < 40; i++) {
+            frame.addByteArgument((byte) (i + 1));
+        }
+        assertEquals(40, frame.getArgumentsCount());
+        for (int i = 0; i < 40; i++) {
+            assertArrayEquals(new byte[]{(byte) (i + 1)}, frame.getArgument(i));
+        }
+    }
+
+    @Test
+    public void keepsCharAndBooleanArgumentsWhenGrowing() {
+        ShieldFrame frame = new ShieldFrame(SHIELD_ID, FUNCTION_ID);
+        for (int i = 0; i < 20; i++) {
+            frame.addCharArgument((char) ('a' + i));
+            frame.addBooleanArgument(true);
+        }
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(new byte[]{(byte) ('a' + i)}, frame.getArgument(i * 2));
+            assertArrayEquals(new byte[]{1}, frame.getArgument(i * 2 + 1));
+        }
+    }
+
+    @Test
+    public void readsBackIntegerAndFloatArguments() {
+        ShieldFrame frame = new ShieldFrame(SHIELD_ID, FUNCTION_ID);
+        frame.addIntegerArgument(2, 0x1234);
+        frame.addIntegerArgument(4, -5);
+        frame.addFloatArgument(1.5f);
+        assertEquals(0x1234, frame.getArgumentAsInteger(0));
+        assertEquals(-5, frame.getArgumentAsInteger(4, 1));
+        assertEquals(1.5f, frame.getArgumentAsFloat(2), 0);
+    }
+
+    @Test
+    public void resizesArgumentInPlace() {
+        ShieldFrame frame = new ShieldFrame(SHIELD_ID, FUNCTION_ID);
+        frame.addStringArgument("ab");
+        frame.addByteArgument((byte) 7);
+        frame.setStringArgument(0, "a longer string than the frame had room for");
+        assertEquals("a longer string than the frame had room for", frame.getArgumentAsString(0));
+        assertArrayEquals(new byte[]{7}, frame.getArgument(1));
+    }
+
+    @Test
+    public void keepsWireLayout() {
+        ShieldFrame frame = new ShieldFrame(SHIELD_ID, FUNCTION_ID);
+        frame.addByteArgument((byte) 0x55);
+        assertArrayEquals(new byte[]{ShieldFrame.START_OF_FRAME, SHIELD_ID, 0, FUNCTION_ID,
+                        1, (byte) 0xFE, 1, (byte) 0xFE, 0x55, ShieldFrame.END_OF_FRAME},
+                frame.getAllFrameAsBytes());
+    }
+}